@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converter.convertDir on a tree of small files, in each ExecutionMode.
+ *
+ * By default the tree is written to a temporary directory, where it stays in
+ * the page cache and the conversion is CPU-bound. To see how the modes cope
+ * with slow storage, put a tree on a network share (or any file system with
+ * a high latency per operation) and give its path as the input parameter:
+ *
+ *     ant bench -Dbench.args="ConvertDir -p input=/mnt/share/tree"
+ *
+ * Virtual threads are only used by THREAD_PER_FILE on Java 21 and later, so
+ * run that comparison on such a JVM (-jvm in bench.args).
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConvertDirBenchmark {
+
+    @Param({"WORKER_POOL", "THREAD_PER_FILE"})
+    public ExecutionMode mode;
+
+    // an existing tree, or empty for a generated one
+    @Param({""})
+    public String input;
+
+    // the generated tree: so many files of so many bytes, in folders of 100
+    @Param({"1000"})
+    public int files;
+
+    @Param({"4K"})
+    public String size;
+
+    // workers of WORKER_POOL, 0 for one per processor
+    @Param({"0"})
+    public int threads;
+
+    private Converter converter;
+    private File      dir;
+    private File      inputDir;
+    private File      outputDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("any2utf8-bench").toFile();
+
+        if (input.isEmpty()) {
+            inputDir = new File(dir, "input");
+
+            String[] encodings = {"UTF-8", "windows-1252", "ISO-8859-2", "Shift_JIS", "GB18030", "KOI8-R"};
+            for (int i = 0; i < files; i++) {
+                File folder = new File(inputDir, "folder" + (i / 100));
+                folder.mkdirs();
+                File file = new File(folder, "file" + i + ".txt");
+                Samples.writeText(file, encodings[i % encodings.length], Samples.parseSize(size));
+                Samples.checkText(file, encodings[i % encodings.length]);
+            }
+        }
+        else {
+            inputDir = new File(input);
+        }
+
+        converter = new Converter();
+        converter.setLogBufferSize(0);
+        converter.setExecutionMode(mode);
+        converter.setThreads(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutput() {
+        // convertDir wants an empty output directory
+        outputDir = new File(dir, "output");
+        deleteTree(outputDir);
+        outputDir.mkdir();
+    }
+
+    @TearDown
+    public void tearDown() {
+        deleteTree(dir);
+    }
+
+    @Benchmark
+    public ErrorCode convertDir() {
+        return converter.convertDir(inputDir, outputDir, false);
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+
+        file.delete();
+    }
+}
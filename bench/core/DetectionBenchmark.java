@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The detector chain alone, on the head of a file as convertFile gives it.
+ * Sizes past DETECTION_SAMPLE_SIZE only tell whether the sample is complete.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectionBenchmark {
+
+    @Param({"UTF-8", "UTF-16LE", "UTF-16BE", "windows-1252", "ISO-8859-2", "Shift_JIS", "GB18030", "KOI8-R"})
+    public String encoding;
+
+    @Param({"1K", "1M", "1G"})
+    public String size;
+
+    private final DetectorChain        chain      = new DetectorChain();
+    private final ConversionStatistics statistics = new ConversionStatistics();
+
+    private DetectionSample sample;
+
+    @Setup
+    public void setUp() {
+        long length = Samples.parseSize(size);
+        byte[] head = Samples.text(encoding, (int) Math.min(length, Converter.DETECTION_SAMPLE_SIZE));
+
+        sample = new DetectionSample(null, head, length, new StreamTranscoder(statistics, new ProgressTracker()));
+    }
+
+    @Benchmark
+    public Detection detect() {
+        return chain.detect(sample, statistics);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A file decoded from memory mappings (transcodeMapped) against the same file
+ * read into heap buffers (transcode), which is what Converter.setMappingThreshold
+ * chooses between. The file stays in the page cache, the output is thrown away.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappedTranscodeBenchmark {
+
+    @Param({"UTF-16LE", "windows-1252", "Shift_JIS"})
+    public String encoding;
+
+    @Param({"1M", "16M", "64M", "256M"})
+    public String size;
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    private StreamTranscoder transcoder;
+    private Charset          charset;
+    private File             file;
+    private FileInputStream  input;
+
+    @Setup
+    public void setUp() throws IOException {
+        transcoder = new StreamTranscoder(new ConversionStatistics(), new ProgressTracker());
+        charset    = Charset.forName(encoding);
+        file       = Files.createTempFile("any2utf8-bench", ".txt").toFile();
+
+        Samples.writeText(file, encoding, Samples.parseSize(size));
+        Samples.checkText(file, encoding);
+
+        input = new FileInputStream(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        input.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long transcode() throws IOException {
+        FileChannel in = input.getChannel();
+        in.position(0);
+
+        return mapped ? transcoder.transcodeMapped(in, Samples.NULL_OUTPUT, charset, false)
+                      : transcoder.transcode(in, Samples.NULL_OUTPUT, charset, false);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+
+/**
+ * Text in the encodings the benchmarks run on, made of sentences written in
+ * languages each encoding is actually used for
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+final class Samples {
+
+    private static final DetectorChain CHAIN = new DetectorChain();
+
+    private Samples() {
+    }
+
+    /**
+     * @param encoding
+     * @return a paragraph of text which can be encoded in encoding
+     */
+    static String paragraph(String encoding) {
+        switch (encoding) {
+            case "windows-1252":
+                return "Le cœur déçu mais l'âme plutôt naïve, Louÿs rêva de crapaüter en canoë au delà des îles. " +
+                        "Zwölf Boxkämpfer jagen Viktor quer über den großen Sylter Deich, für nur 5 €.\n";
+            case "ISO-8859-2":
+                // a single language: the detector scores Polish, Czech and Hungarian
+                // apart, and takes a mixture of them for UTF-16
+                return "Zażółć gęślą jaźń. Wczoraj wieczorem poszliśmy na spacer nad rzekę, gdzie było " +
+                        "bardzo cicho i spokojnie. Dzieci bawiły się w ogrodzie, a babcia opowiadała im bajki.\n";
+            case "KOI8-R":
+                return "Съешь же ещё этих мягких французских булок, да выпей чаю. Вечером мы пошли гулять " +
+                        "к реке, где было тихо и спокойно. Дети играли в саду, а бабушка рассказывала им сказки.\n";
+            case "Shift_JIS":
+                return "いろはにほへと ちりぬるを わかよたれそ つねならむ うゐのおくやま けふこえて " +
+                        "あさきゆめみし ゑひもせす。日本語の文章を変換する試験です。\n";
+            case "GB18030":
+                return "我能吞下玻璃而不伤身体。天地玄黄，宇宙洪荒，日月盈昃，辰宿列张。" +
+                        "这是一个用来测试编码转换速度的中文段落。\n";
+            default:
+                // the Unicode encodings get a bit of everything
+                return "Zwölf Boxkämpfer jagen Viktor, Съешь же ещё этих мягких булок, " +
+                        "日本語の文章, 我能吞下玻璃而不伤身体, Zażółć gęślą jaźń.\n";
+        }
+    }
+
+    /**
+     * @param encoding
+     * @param size
+     * @return size bytes of text in encoding, whole paragraphs padded with spaces
+     */
+    static byte[] text(String encoding, int size) {
+        Charset charset = Charset.forName(encoding);
+        byte[] paragraph = paragraph(encoding).getBytes(charset);
+        byte[] space     = " ".getBytes(charset);
+
+        // none of the encodings benchmarked puts a byte-order-mark in front of each paragraph
+        ByteArrayOutputStream text = new ByteArrayOutputStream(size);
+        while (text.size() + paragraph.length <= size) text.write(paragraph, 0, paragraph.length);
+        while (text.size() + space.length <= size) text.write(space, 0, space.length);
+
+        return text.toByteArray();
+    }
+
+    /**
+     * Write a file of text without ever holding more than a megabyte of it in memory
+     * @param file
+     * @param encoding
+     * @param size
+     * @throws IOException
+     */
+    static void writeText(File file, String encoding, long size) throws IOException {
+        byte[] block = text(encoding, 1024 * 1024);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            long written = 0;
+            for (; size - written >= block.length; written += block.length) out.write(block);
+
+            // a block cut short could end in the middle of a character
+            if (written < size) out.write(text(encoding, (int) (size - written)));
+        }
+    }
+
+    /**
+     * Make sure a sample decodes without a single malformed or unmappable
+     * sequence and that the detector takes it for what it is, lest a benchmark
+     * time conversions which fail or convert from the wrong charset
+     * @param file
+     * @param encoding
+     * @throws IOException
+     * @throws IllegalStateException if it does not
+     */
+    static void checkText(File file, String encoding) throws IOException {
+        Charset charset = Charset.forName(encoding);
+        char[]  chars   = new char[64 * 1024];
+
+        try (Reader in = new InputStreamReader(new FileInputStream(file), charset.newDecoder())) {
+            while (in.read(chars) >= 0) {
+                // decoding is all that matters
+            }
+        }
+        catch (CharacterCodingException ex) {
+            throw new IllegalStateException(file + " is not valid " + encoding, ex);
+        }
+
+        byte[] head = new byte[(int) Math.min(file.length(), Converter.DETECTION_SAMPLE_SIZE)];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(head);
+        }
+
+        ConversionStatistics statistics = new ConversionStatistics();
+        Detection detection = CHAIN.detect(new DetectionSample(file, head, file.length(),
+                new StreamTranscoder(statistics, new ProgressTracker())), statistics);
+
+        if (detection == null || !Charset.forName(detection.getCharsetName()).equals(charset)) {
+            throw new IllegalStateException(file + " is taken for "
+                    + (detection == null ? "nothing" : detection.getCharsetName()) + " rather than " + encoding);
+        }
+    }
+
+    /**
+     * @param size 1K, 1M, 1G and so on
+     * @return the number of bytes
+     */
+    static long parseSize(String size) {
+        long unit;
+        switch (size.charAt(size.length() - 1)) {
+            case 'K': unit = 1024L; break;
+            case 'M': unit = 1024L * 1024; break;
+            case 'G': unit = 1024L * 1024 * 1024; break;
+            default: return Long.parseLong(size);
+        }
+
+        return Long.parseLong(size.substring(0, size.length() - 1)) * unit;
+    }
+
+    /**
+     * A channel reading a buffer, so that decoding is measured without any I/O
+     */
+    static ReadableByteChannel channel(final ByteBuffer bytes) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!bytes.hasRemaining()) return -1;
+
+                int n = Math.min(dst.remaining(), bytes.remaining());
+                ByteBuffer slice = bytes.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                bytes.position(bytes.position() + n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Throws away what it is given
+     */
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding and encoding alone: the text is in memory and the UTF-8 output is
+ * thrown away, so no I/O is measured. Multiply operations per second by the
+ * size for bytes per second.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class TranscodeBenchmark {
+
+    @Param({"UTF-8", "UTF-16LE", "UTF-16BE", "windows-1252", "ISO-8859-2", "Shift_JIS", "GB18030", "KOI8-R"})
+    public String encoding;
+
+    @Param({"1K", "1M", "1G"})
+    public String size;
+
+    private StreamTranscoder transcoder;
+    private Charset          charset;
+    private ByteBuffer       text;
+
+    @Setup
+    public void setUp() {
+        transcoder = new StreamTranscoder(new ConversionStatistics(), new ProgressTracker());
+        charset    = Charset.forName(encoding);
+        text       = ByteBuffer.wrap(Samples.text(encoding, (int) Samples.parseSize(size)));
+    }
+
+    @Benchmark
+    public long transcode() throws IOException {
+        text.rewind();
+        return transcoder.transcode(Samples.channel(text), Samples.NULL_OUTPUT, charset, false);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What convertFile does with a small file once it is read (detection and
+ * transcoding), with a transcoder borrowed from the pool as Converter does or
+ * with a new one for each file, as a thread-per-file run would without the
+ * pool. Run with -prof gc to see what each file allocates.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranscoderPoolBenchmark {
+
+    @Param({"windows-1252", "Shift_JIS", "GB18030"})
+    public String encoding;
+
+    @Param({"600", "4K"})
+    public String size;
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private final DetectorChain        chain      = new DetectorChain();
+    private final ConversionStatistics statistics = new ConversionStatistics();
+    private final ProgressTracker      progress   = new ProgressTracker();
+
+    private StreamTranscoder pool;
+    private byte[]           text;
+
+    @Setup
+    public void setUp() {
+        pool = new StreamTranscoder(statistics, progress);
+        text = Samples.text(encoding, (int) Samples.parseSize(size));
+    }
+
+    @Benchmark
+    public long convert() throws IOException {
+        StreamTranscoder transcoder = pooled ? pool : new StreamTranscoder(statistics, progress);
+
+        Detection detection = chain.detect(new DetectionSample(null, text, text.length, transcoder), statistics);
+        Charset charset = Charset.forName(detection.getCharsetName());
+
+        return transcoder.transcode(Samples.channel(ByteBuffer.wrap(text)), Samples.NULL_OUTPUT, charset, false);
+    }
+}
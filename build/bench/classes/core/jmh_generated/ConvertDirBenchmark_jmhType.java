@@ -0,0 +1,4 @@
+package core.jmh_generated;
+public class ConvertDirBenchmark_jmhType extends ConvertDirBenchmark_jmhType_B3 {
+}
+
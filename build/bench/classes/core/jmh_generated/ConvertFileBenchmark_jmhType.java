@@ -0,0 +1,4 @@
+package core.jmh_generated;
+public class ConvertFileBenchmark_jmhType extends ConvertFileBenchmark_jmhType_B3 {
+}
+
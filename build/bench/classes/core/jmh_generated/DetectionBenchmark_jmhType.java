@@ -0,0 +1,4 @@
+package core.jmh_generated;
+public class DetectionBenchmark_jmhType extends DetectionBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package core.jmh_generated;
+public class MappedTranscodeBenchmark_jmhType extends MappedTranscodeBenchmark_jmhType_B3 {
+}
+
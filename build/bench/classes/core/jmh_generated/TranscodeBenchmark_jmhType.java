@@ -0,0 +1,4 @@
+package core.jmh_generated;
+public class TranscodeBenchmark_jmhType extends TranscodeBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package core.jmh_generated;
+public class TranscoderPoolBenchmark_jmhType extends TranscoderPoolBenchmark_jmhType_B3 {
+}
+
@@ -18,10 +18,31 @@
 package console;
 
 import core.About;
+import core.ConversionClient;
+import core.ConversionServer;
 import core.Converter;
 import core.ErrorCode;
+import core.DedupMode;
+import core.DetectionCache;
+import core.DetectorChain;
+import core.ExecutionMode;
+import core.PipelineStage;
+import core.FileSink;
+import core.PrintStreamSink;
 import core.Utils;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -30,6 +51,12 @@ import java.io.File;
 public class Console {
 
     private static final boolean ADDBOM = false;
+
+    // stands for standard input or output instead of a file name
+    private static final String STREAM = "-";
+
+    // where the conversion log and summaries go, stderr when the output is stdout
+    private PrintStream messages = System.out;
     
     public static void main(String[] args) {
         Console console = new Console();
@@ -37,22 +64,213 @@ public class Console {
     }
 
     private void go(String[] args) {
+        // the client leaves the converter (and the detector) to the server
+        if (args.length > 0 && args[0].equals("-connect")) {
+            System.exit(connect(args) ? 0 : 1);
+        }
+
         Converter converter = new Converter();
+        FileSink logFile = null;
+        boolean stats = false;
+        File cacheFile = null;
+        int cacheSize = DetectionCache.DEFAULT_CAPACITY;
+        DetectionCache cache = null;
+        int serverPort = -1;
+
+        // print events as they happen instead of keeping them in memory until the end
+        converter.setLogBufferSize(0);
 
         if (args.length == 1 && (args[0].equals("-help") || args[0].equals("--help"))) {
             printExtendedInfo();
             System.exit(0);
         }
 
+        // separate options from input/output parameters
+        List<String> params = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                try {
+                    converter.setThreads(Integer.parseInt(args[++i]));
+                }
+                catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+                    System.err.println("Error: -threads must be followed by a number greater than 0.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-io")) {
+                try {
+                    converter.setMaxOpenFiles(Integer.parseInt(args[++i]));
+                    converter.setExecutionMode(ExecutionMode.THREAD_PER_FILE);
+                }
+                catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+                    System.err.println("Error: -io must be followed by a number greater than 0.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-pipeline")) {
+                try {
+                    String[] counts = args[++i].split(",");
+                    PipelineStage[] stages = PipelineStage.values();
+
+                    if (counts.length != stages.length) throw new IllegalArgumentException();
+
+                    for (int j = 0; j < stages.length; j++) {
+                        converter.setStageThreads(stages[j], Integer.parseInt(counts[j].trim()));
+                    }
+                    converter.setExecutionMode(ExecutionMode.PIPELINE);
+                }
+                catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+                    System.err.println("Error: -pipeline must be followed by four numbers greater than 0, " +
+                        "separated by commas (e.g. 2,1,4,1).");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-hint")) {
+                try {
+                    String hint = args[++i];
+                    int eq = hint.lastIndexOf('=');
+
+                    if (eq <= 0 || eq == hint.length() - 1) throw new IllegalArgumentException();
+
+                    converter.getDetectorChain().getHints().addHint(hint.substring(0, eq), hint.substring(eq + 1), 100);
+                }
+                catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+                    System.err.println("Error: -hint must be followed by a file name pattern and an encoding " +
+                        "(e.g. *.nfo=IBM437).");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-threshold")) {
+                try {
+                    converter.getDetectorChain().setThreshold(Integer.parseInt(args[++i]));
+                }
+                catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                    System.err.println("Error: -threshold must be followed by a number between 0 and 100.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-sync")) {
+                converter.setIncremental(true);
+            }
+            else if (args[i].equals("-hash")) {
+                converter.setHashContents(true);
+            }
+            else if (args[i].equals("-delete")) {
+                converter.setDeleteOrphans(true);
+            }
+            else if (args[i].equals("-dedup")) {
+                try {
+                    String mode = args[++i];
+
+                    if (mode.equals("copy")) converter.setDedupMode(DedupMode.COPY);
+                    else if (mode.equals("link")) converter.setDedupMode(DedupMode.HARDLINK);
+                    else if (mode.equals("reflink")) converter.setDedupMode(DedupMode.REFLINK);
+                    else throw new IllegalArgumentException();
+                }
+                catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+                    System.err.println("Error: -dedup must be followed by copy, link or reflink.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-nolinks")) {
+                converter.setFollowLinks(false);
+            }
+            else if (args[i].equals("-stats")) {
+                stats = true;
+                converter.getStatistics().registerMBean();
+            }
+            else if (args[i].equals("-mmap")) {
+                try {
+                    converter.setMappingThreshold(Long.parseLong(args[++i]) * 1024 * 1024);
+                }
+                catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                    System.err.println("Error: -mmap must be followed by a size in MB.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-server")) {
+                try {
+                    serverPort = Integer.parseInt(args[++i]);
+                    if (serverPort < 0 || serverPort > 65535) throw new NumberFormatException();
+                }
+                catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                    System.err.println("Error: -server must be followed by a port number.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-cache")) {
+                try {
+                    cacheFile = new File(args[++i]);
+                }
+                catch (IndexOutOfBoundsException ex) {
+                    System.err.println("Error: -cache must be followed by a file name.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-cachesize")) {
+                try {
+                    cacheSize = Integer.parseInt(args[++i]);
+                    if (cacheSize < 1 || cacheSize > DetectionCache.MAX_CAPACITY) throw new NumberFormatException();
+                }
+                catch (IndexOutOfBoundsException | NumberFormatException ex) {
+                    System.err.println("Error: -cachesize must be followed by a number of files between 1 and " +
+                        DetectionCache.MAX_CAPACITY + ".");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-log")) {
+                try {
+                    logFile = new FileSink(new File(args[++i]));
+                    converter.addSink(logFile);
+                }
+                catch (IndexOutOfBoundsException ex) {
+                    System.err.println("Error: -log must be followed by a file name.");
+                    System.exit(1);
+                }
+                catch (IOException ex) {
+                    System.err.println("Error: cannot write log file " + args[i] + ".");
+                    System.exit(1);
+                }
+            }
+            else params.add(args[i]);
+        }
+
+        if (params.size() > 1 && params.get(1).equals(STREAM)) messages = System.err;
+        converter.addSink(new PrintStreamSink(messages, System.err));
+
+        if (cacheFile != null) {
+            try {
+                cache = DetectionCache.open(cacheFile, cacheSize);
+                converter.setDetectionCache(cache);
+            }
+            catch (IOException ex) {
+                System.err.println("Error: cannot use detection cache " + cacheFile + ": " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (serverPort >= 0) {
+            serve(converter, serverPort, cache, logFile);
+            return;
+        }
+
         try {
-            File input  = new File(args[0]);
-            File output = new File(args[1]);
+            File input  = new File(params.get(0));
+            File output = new File(params.get(1));
 
-            if (input.isDirectory() && output.isDirectory()) {
+            if (params.get(0).equals(STREAM) || params.get(1).equals(STREAM)) {
+                if (!convertStream(converter, params.get(0), params.get(1))) {
+                    closeQuietly(cache);
+                    closeQuietly(logFile);
+                    System.exit(1);
+                }
+            }
+
+            else if (input.isDirectory() && output.isDirectory()) {
                 if (!converter.convertDir(input, output, ADDBOM).equals(ErrorCode.OK)) {
-                    System.out.print(converter.getLog());
-                    System.out.print(converter.getWarningLog());
-                    System.out.print(converter.getErrorLog());
+                    closeQuietly(cache);
+                    closeQuietly(logFile);
                     System.exit(1);
                 }                   
             }
@@ -66,7 +284,8 @@ public class Console {
             // in this case create a file with the same name in destination directory
             else if(input.isFile() && output.isDirectory()) {
                 File outputFile = new File(output + File.separator + input.getName());
-                converter.convertFile(input, outputFile, ADDBOM);
+                if (Converter.isArchive(input)) converter.convertArchive(input, outputFile, ADDBOM);
+                else converter.convertFile(input, outputFile, ADDBOM);
             }
 
             else if(input.isFile() && output.isFile()) {
@@ -75,7 +294,8 @@ public class Console {
             }
 
             else if(input.isFile() && !output.isFile()) {
-                converter.convertFile(input, output, ADDBOM);
+                if (Converter.isArchive(input)) converter.convertArchive(input, output, ADDBOM);
+                else converter.convertFile(input, output, ADDBOM);
             }
 
             else {
@@ -83,17 +303,182 @@ public class Console {
                 Console.printSyntax();
             }
         }
-        catch (ArrayIndexOutOfBoundsException ex) {
+        catch (IndexOutOfBoundsException ex) {
             System.err.println("Error: missing parameters, try running the program with -help");
             System.err.println();
             Console.printSyntax();
             System.exit(1);
         }
         
-        System.out.print(converter.getLog());
-        System.err.print(converter.getWarningLog());
-        System.err.print(converter.getErrorLog());
-        System.out.println("Conversion completed successfully.");
+        closeQuietly(cache);
+        closeQuietly(logFile);
+        printFastPathSummary(converter);
+        printDedupSummary(converter);
+        if (stats) messages.print(converter.getStatistics().summary());
+        messages.println("Conversion completed successfully.");
+    }
+
+    /**
+     * Filter mode, where input and/or output is standard input or output:
+     * the input is read once from start to end and never seeked, e.g.
+     * zcat corpus.gz | java -jar any2utf8.jar - - | indexer
+     * @param converter
+     * @param inputName
+     * @param outputName
+     * @return true if the conversion succeeded
+     */
+    private boolean convertStream(Converter converter, String inputName, String outputName) {
+        File input  = inputName.equals(STREAM) ? null : new File(inputName);
+        File output = outputName.equals(STREAM) ? null : new File(outputName);
+
+        if (input != null && !input.isFile()) {
+            System.err.println("Error: " + input + " is not a file, only files can be written to standard output.");
+            return false;
+        }
+
+        if (output != null && output.isDirectory()) {
+            System.err.println("Error: standard input has no name to give a file in " + output +
+                ", please specify an output file.");
+            return false;
+        }
+
+        if (output != null && output.exists()) {
+            System.err.println("Error: " + output + " already exists.");
+            return false;
+        }
+
+        InputStream  in  = null;
+        OutputStream out = null;
+        ErrorCode result;
+
+        try {
+            // not System.in and System.out, whose own buffers would only get in the way
+            in  = input != null ? new FileInputStream(input) : new FileInputStream(FileDescriptor.in);
+            out = output != null ? new FileOutputStream(output) : new FileOutputStream(FileDescriptor.out);
+
+            result = converter.convertStream(in, out, input, ADDBOM);
+        }
+        catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            result = ErrorCode.INVALID_OUTPUT_FILE;
+        }
+        finally {
+            // leave standard input and output open
+            if (input != null) closeQuietly(in);
+            if (output != null) closeQuietly(out);
+        }
+
+        if (output != null && !result.equals(ErrorCode.OK)) output.delete();
+
+        return result.equals(ErrorCode.OK) || result.equals(ErrorCode.FILE_IS_EMPTY);
+    }
+
+    /**
+     * Server mode: convert files for clients until the process is killed
+     * @param converter
+     * @param port
+     * @param cache
+     * @param logFile
+     */
+    private void serve(Converter converter, int port, final DetectionCache cache, final FileSink logFile) {
+        final ConversionServer server;
+
+        try {
+            server = new ConversionServer(converter, port, Runtime.getRuntime().availableProcessors(), ADDBOM);
+        }
+        catch (IOException ex) {
+            System.err.println("Error: cannot serve on port " + port + ": " + ex.getMessage());
+            closeQuietly(cache);
+            closeQuietly(logFile);
+            System.exit(1);
+            return;
+        }
+
+        // the server is stopped by a signal: conversions in progress still use the cache
+        // and the log file, which must be closed after them for what they buffer to reach the disk
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.shutdown(10, TimeUnit.SECONDS);
+                }
+                catch (IOException | InterruptedException ex) {
+                    System.err.println("Error: " + ex.getMessage());
+                }
+
+                closeQuietly(cache);
+                closeQuietly(logFile);
+            }
+        });
+
+        try {
+            messages.println(About.getProgramNameCli() + " listening on " +
+                InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort() +
+                ", token in " + ConversionServer.getTokenFile(server.getPort()) + ".");
+            server.serve();
+        }
+        catch (IOException ex) {
+            System.err.println("Error: cannot serve on port " + port + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Client mode: -connect port input output, the conversion is done by a
+     * server started with -server port
+     * @param args
+     * @return true if the conversion succeeded
+     */
+    private boolean connect(String[] args) {
+        if (args.length != 4) {
+            System.err.println("Error: -connect must be followed by a port number, an input file " +
+                "and an output file or directory.");
+            return false;
+        }
+
+        try (ConversionClient client = new ConversionClient(Integer.parseInt(args[1]))) {
+            String result = client.convert(new File(args[2]), new File(args[3]), new PrintStreamSink(messages, System.err));
+            return result.equals(ErrorCode.OK.name());
+        }
+        catch (NumberFormatException ex) {
+            System.err.println("Error: -connect must be followed by a port number.");
+        }
+        catch (IllegalArgumentException | IOException ex) {
+            System.err.println("Error: cannot convert through the server on port " + args[1] + ": " + ex.getMessage());
+        }
+
+        return false;
+    }
+
+    private void printFastPathSummary(Converter converter) {
+        if (converter.getFastPathFiles() == 0) return;
+
+        double megabytes = converter.getFastPathBytes() / (1024.0 * 1024.0);
+        double seconds   = converter.getFastPathNanos() / 1e9;
+
+        messages.println(String.format("%d of %d files (%.1f MB) were already ASCII or UTF-8 " +
+                "and were copied at %.1f MB/s.", converter.getFastPathFiles(),
+                converter.getFilesConverted(), megabytes, seconds > 0 ? megabytes / seconds : 0));
+    }
+
+    private void printDedupSummary(Converter converter) {
+        long files = converter.getStatistics().getDuplicateFiles();
+        if (files == 0) return;
+
+        messages.println(String.format("%d files (%.1f MB) were duplicates and were not converted again, " +
+                "saving %.1fs of processor time.", files, converter.getStatistics().getDuplicateBytes() / (1024.0 * 1024.0),
+                converter.getStatistics().getDuplicateNanos() / 1e9));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+
+        try {
+            closeable.close();
+        }
+        catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
     }
 
     public static void printSyntax() {
@@ -125,7 +510,25 @@ public class Console {
         System.err.println();
         System.err.println("Usage: " + commandString + " inputFile outputFile");
         System.err.println("  or   " + commandString + " inputFile outputDir");
-        System.err.println("  or   " + commandString + " inputDir outputDir");
+        System.err.println("  or   " + commandString + " [-threads n | -io n | -pipeline r,d,t,w] inputDir outputDir");
+        System.err.println("  or   " + commandString + " inputFile|- outputFile|-");
+        System.err.println("  or   " + commandString + " -server port");
+        System.err.println("  or   " + commandString + " -connect port inputFile outputFile|outputDir");
+        System.err.println();
+        System.err.println("Options: -log file     also append the conversion log to file");
+        System.err.println("         -hint p=enc   files whose name matches p are in encoding enc");
+        System.err.println("         -threshold n  stop detecting at the first guess n% sure (default " +
+            DetectorChain.DEFAULT_THRESHOLD + ")");
+        System.err.println("         -cache file   remember detected encodings in file from one run to the next");
+        System.err.println("         -cachesize n  files the cache can remember (default " +
+            DetectionCache.DEFAULT_CAPACITY + ")");
+        System.err.println("         -dedup how    convert identical files once, then copy, link or reflink");
+        System.err.println("         -mmap n       memory-map input files of n MB or more (default 64)");
+        System.err.println("         -nolinks      skip symbolic links instead of following them");
+        System.err.println("         -stats        print per-stage timings and publish them through JMX");
+        System.err.println("         -sync         only convert files which changed since the last run");
+        System.err.println("         -hash         with -sync, also compare file contents");
+        System.err.println("         -delete       with -sync, delete converted files whose input is gone");
     }
 
     public static void printExtendedInfo() {
@@ -139,11 +542,40 @@ public class Console {
             "Unrecognised files (e.g. binary files or text files using unrecognised encodings) " +
             "will be skipped and warnings will be printed to stderr."));
         System.err.println();
+        System.err.println(Utils.wordWrap("When converting a directory, -threads n spreads " +
+            "the files over n worker threads (default is 1, i.e. one file at a time). " +
+            "On slow (e.g. network-mounted) storage use -io n instead: every file gets its own " +
+            "lightweight thread and up to n files are converted at the same time. " +
+            "-pipeline r,d,t,w overlaps disk and processor work instead: files are read by r " +
+            "threads, their encoding detected by d threads, converted by t threads and written " +
+            "by w threads, and -stats shows which of these stages files waited for the most."));
+        System.err.println();
+        System.err.println(Utils.wordWrap("Either file name can be - for standard input or output, " +
+            "e.g. zcat text.gz | " + About.getProgramNameCli() + " - - | indexer: the encoding is " +
+            "detected from the first few kilobytes and the rest is converted as it comes in, in " +
+            "constant memory. When the output is standard output, the log goes to stderr."));
+        System.err.println();
+        System.err.println(Utils.wordWrap("An inputFile ending in .zip, .tar, .tar.gz or .tgz is " +
+            "converted into an archive of the same kind, entry by entry and without extracting " +
+            "it: names and timestamps are kept and binary entries are copied as they are."));
+        System.err.println();
+        System.err.println(Utils.wordWrap("-server port keeps the program running and converts " +
+            "files for -connect port clients on the same machine, several at a time, so that each " +
+            "file no longer pays for starting Java and the encoding detector. The options are given " +
+            "to the server; the client only takes the port, the input file and the output. Only " +
+            "the user who started the server can connect to it: the server writes a token to " +
+            ".any2utf8-server-port in that user's home directory, readable by nobody else, and " +
+            "the client sends it."));
+        System.err.println();
         System.err.println(Utils.wordWrap("The program will not overwrite existing files and will "+
-            "refuse to work if a non-empty outputDir is specified."));
+            "refuse to work if a non-empty outputDir is specified, unless -sync is used: in that " +
+            "case a manifest of the converted files is kept in outputDir and converting the same " +
+            "inputDir again only converts files which are new or were modified since."));
 		System.err.println();
         System.err.println(Utils.wordWrap("The detected character encoding for each file is " +
-            "printed to stdout."));
+            "printed to stdout. Byte-order-marks, plain ASCII or UTF-8 and -hint patterns " +
+            "(e.g. -hint \"*.nfo=IBM437\", may be repeated) are looked at before the statistical " +
+            "detector, which is only run when none of them is at least -threshold percent sure."));
         System.err.println();
         System.err.println("Copyright (C) " + About.getCopyrightFirst() + "-" +
                 About.getCopyrightLast() + " by " + About.getAuthor() + ".");
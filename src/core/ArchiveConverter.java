@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Converts the text files inside a ZIP or TAR (optionally gzipped) archive into
+ * an archive of the same kind, in a single pass and without extracting anything:
+ * each entry goes through the detector and the transcoder as it is read. Entry
+ * names and timestamps are kept (for TAR, the whole header but the size);
+ * binary entries and entries whose encoding can't be detected are copied as
+ * they are, and so are entries which turn out not to be in the detected
+ * encoding after all (with a warning, the rest of the archive is converted):
+ * for ZIP, only if that shows in their first bytes, since anything written to
+ * a ZIP entry is there to stay.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class ArchiveConverter {
+
+    enum Format {
+        ZIP,
+        TAR,
+        TAR_GZ
+    }
+
+    // TAR headers need the size of converted entries before their data: they are
+    // kept in memory up to this size, in a temporary file beyond it
+    static final int MEMORY_LIMIT = 16 * 1024 * 1024;
+
+    private final Converter            converter;
+    private final StreamTranscoder     transcoder;
+    private final ConversionStatistics statistics;
+    private final File                 archive;
+    private final boolean              addBom;
+
+    private final byte[] buffer = new byte[StreamTranscoder.BUFFER_SIZE];
+
+    ArchiveConverter(Converter converter, StreamTranscoder transcoder, ConversionStatistics statistics,
+            File archive, boolean addBom) {
+        this.converter  = converter;
+        this.transcoder = transcoder;
+        this.statistics = statistics;
+        this.archive    = archive;
+        this.addBom     = addBom;
+    }
+
+    /**
+     * @param file
+     * @return the format of an archive according to its name, null if it is not one
+     */
+    static Format formatOf(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+
+        if (name.endsWith(".zip")) return Format.ZIP;
+        if (name.endsWith(".tar")) return Format.TAR;
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) return Format.TAR_GZ;
+        return null;
+    }
+
+    /**
+     * Progress through an archive is counted in bytes of entries, which is more
+     * than the length of a compressed archive
+     * @param archive
+     * @return the total size of the entries of a ZIP archive according to its
+     * central directory, the length of the TAR inside a gzipped TAR according to
+     * the gzip trailer, the length of the archive otherwise (or if those can't be
+     * read)
+     */
+    static long contentLength(File archive) {
+        long length = archive.length();
+
+        try {
+            switch (formatOf(archive)) {
+                case ZIP:
+                    long total = 0;
+                    try (ZipFile zip = new ZipFile(archive)) {
+                        Enumeration<? extends ZipEntry> entries = zip.entries();
+                        while (entries.hasMoreElements()) {
+                            long size = entries.nextElement().getSize();
+                            if (size < 0) return length;
+                            total += size;
+                        }
+                    }
+                    return total;
+
+                case TAR_GZ:
+                    if (length < 4) return length;
+
+                    long size;
+                    try (RandomAccessFile file = new RandomAccessFile(archive, "r")) {
+                        file.seek(length - 4);
+                        size = Integer.reverseBytes(file.readInt()) & 0xffffffffL;
+                    }
+
+                    // the trailer holds the size modulo 4 GB; deflate adds at most a few
+                    // bytes per block to data it can't compress, so anything smaller
+                    // than that means the TAR is bigger than 4 GB
+                    while (size < length - length / 1000 - 1024) size += 1L << 32;
+                    return size;
+
+                default:
+                    return length;
+            }
+        }
+        catch (IOException ex) {
+            // the conversion will tell what is wrong with it
+            return length;
+        }
+    }
+
+    void convert(File output) throws IOException {
+        Format format = formatOf(archive);
+
+        if (format == Format.ZIP) convertZip(output);
+        else convertTar(output, format == Format.TAR_GZ);
+    }
+
+    private void convertZip(File output) throws IOException {
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(archive), buffer.length));
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output), buffer.length))) {
+
+            ReadableByteChannel channel = Channels.newChannel(in);
+
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                ZipEntry copy = new ZipEntry(entry.getName());
+                copy.setTime(entry.getTime());
+                if (entry.getLastModifiedTime() != null) copy.setLastModifiedTime(entry.getLastModifiedTime());
+                if (entry.getLastAccessTime() != null) copy.setLastAccessTime(entry.getLastAccessTime());
+                if (entry.getCreationTime() != null) copy.setCreationTime(entry.getCreationTime());
+                copy.setComment(entry.getComment());
+
+                if (entry.isDirectory()) {
+                    out.putNextEntry(copy);
+                    out.closeEntry();
+                    continue;
+                }
+
+                byte[] head = transcoder.readHead(channel, Converter.DETECTION_SAMPLE_SIZE);
+                Charset charset = inspect(entry.getName(), head);
+
+                // deflated entries need not know their size beforehand
+                out.putNextEntry(copy);
+                if (charset == null) {
+                    copy(head, in, out);
+                }
+                else {
+                    // what has been written of the entry can't be taken back
+                    try {
+                        transcode(head, channel, out, charset);
+                    }
+                    catch (CharacterCodingException ex) {
+                        throw new IOException(entry.getName() + " is not valid " + charset.displayName()
+                                + " beyond its first " + head.length + " bytes", ex);
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    private void convertTar(File output, boolean gzip) throws IOException {
+        InputStream  fileIn  = new FileInputStream(archive);
+        OutputStream fileOut = new FileOutputStream(output);
+
+        try (CountingInputStream tar = new CountingInputStream(gzip ? new GZIPInputStream(fileIn, buffer.length)
+                    : new BufferedInputStream(fileIn, buffer.length));
+             TarInputStream in = new TarInputStream(tar);
+             TarOutputStream out = new TarOutputStream(gzip ? new GZIPOutputStream(fileOut, buffer.length)
+                    : new BufferedOutputStream(fileOut, buffer.length));
+             EntryBuffer converted = new EntryBuffer()) {
+
+            ReadableByteChannel channel = Channels.newChannel(in);
+
+            TarEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                long    offset  = tar.count();
+                Charset charset = null;
+                byte[]  head    = null;
+
+                // a size given by a pax header can't be changed (it hardly ever is)
+                if (entry.isFile() && !entry.hasPaxSize()) {
+                    head    = transcoder.readHead(channel, Converter.DETECTION_SAMPLE_SIZE);
+                    charset = inspect(entry.getName(), head);
+                }
+
+                if (charset == null) {
+                    out.putNextEntry(entry, entry.getSize());
+                    copy(head, in, out);
+                }
+                else if (convertEntry(entry.getName(), head, channel, charset, converted)) {
+                    out.putNextEntry(entry, converted.size());
+                    converted.writeTo(out, buffer);
+                }
+                else {
+                    // the bytes the transcoder went through are gone, the archive has them
+                    out.putNextEntry(entry, entry.getSize());
+                    copyAgain(offset, entry.getSize(), gzip, out);
+                }
+
+                // the next entry may not need a temporary file
+                converted.reset();
+                out.closeEntry();
+            }
+        }
+        finally {
+            // in case the streams wrapping them could not be created
+            fileIn.close();
+            fileOut.close();
+        }
+    }
+
+    /**
+     * Decide what to do with an entry from its first bytes
+     * @param entryName
+     * @param head
+     * @return the charset to convert the entry from, null to copy it as it is
+     */
+    private Charset inspect(String entryName, byte[] head) {
+        if (head.length == 0) return null;
+
+        // entries are named after the archive, which lets -hint patterns match them
+        File name = new File(archive.getPath() + "!" + File.separator + entryName);
+
+        Charset charset = converter.detectQuietly(name, transcoder, head,
+                head.length < Converter.DETECTION_SAMPLE_SIZE ? head.length : -1);
+
+        if (charset == null) {
+            converter.logWarning(archive, "unable to detect encoding of " + name + ", copied as it is.");
+            converter.addWarning(WarningCode.ENCODING_NOT_DETECTED);
+            return null;
+        }
+
+        if (isBinary(head, charset)) {
+            converter.logMessage(archive, name + " appears to be binary, copied as it is.");
+            return null;
+        }
+
+        if (!decodes(head, charset)) {
+            converter.logWarning(archive, name + " is not valid " + charset.displayName() + ", copied as it is.");
+            converter.addWarning(WarningCode.ENCODING_NOT_CONVERTED);
+            return null;
+        }
+
+        converter.logMessage(archive, "Encoding of file " + name + " appears to be " + charset.displayName() + ".");
+        return charset;
+    }
+
+    /**
+     * The detector has a guess for nearly anything, but text other than UTF-16
+     * and UTF-32 has no nulls, except maybe for padding at the end
+     * @param head
+     * @param charset
+     * @return true if the entry is binary
+     */
+    static boolean isBinary(byte[] head, Charset charset) {
+        if (charset.name().startsWith("UTF-16") || charset.name().startsWith("UTF-32")) return false;
+
+        int end = head.length;
+        while (end > 0 && head[end - 1] == 0) end--;
+
+        for (int i = 0; i < end; i++) {
+            if (head[i] == 0) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Entries are copied as they are when their first bytes don't decode, before
+     * anything is written for them
+     * @param head
+     * @param charset
+     * @return true if head is valid in charset, except maybe for a character cut
+     * short at its end when there is more to the entry
+     */
+    static boolean decodes(byte[] head, Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder();
+        ByteBuffer     bytes   = ByteBuffer.wrap(head);
+        CharBuffer     chars   = CharBuffer.allocate(head.length + 1);
+        boolean        whole   = head.length < Converter.DETECTION_SAMPLE_SIZE;
+
+        return !decoder.decode(bytes, chars, whole).isError() && !(whole && decoder.flush(chars).isError());
+    }
+
+    /**
+     * Convert a TAR entry into converted
+     * @param entryName
+     * @param head
+     * @param channel the entry data after head
+     * @param charset
+     * @param converted
+     * @return true if the entry was converted, false if it turned out not to be
+     * in charset after its head: it is to be copied as it is
+     * @throws IOException
+     */
+    private boolean convertEntry(String entryName, byte[] head, ReadableByteChannel channel,
+            Charset charset, EntryBuffer converted) throws IOException {
+        try {
+            transcode(head, channel, converted, charset);
+            return true;
+        }
+        catch (CharacterCodingException ex) {
+            converter.logWarning(archive, archive + "!" + File.separator + entryName + " is not valid "
+                    + charset.displayName() + ", copied as it is.");
+            converter.addWarning(WarningCode.ENCODING_NOT_CONVERTED);
+            return false;
+        }
+    }
+
+    private void transcode(byte[] head, ReadableByteChannel in, OutputStream out, Charset charset) throws IOException {
+        long bytesRead = transcoder.transcode(head, in, out, charset, addBom);
+        statistics.fileConverted(charset.name(), bytesRead);
+    }
+
+    private void copy(byte[] head, InputStream in, OutputStream out) throws IOException {
+        if (head != null) {
+            out.write(head);
+            transcoder.count(head.length);
+        }
+
+        int numRead;
+        while ((numRead = in.read(buffer)) > 0) {
+            out.write(buffer, 0, numRead);
+            transcoder.count(numRead);
+        }
+    }
+
+    /**
+     * Read an entry again from the archive
+     * @param offset where its data starts in the TAR
+     * @param size
+     * @param gzip
+     * @param out
+     * @throws IOException
+     */
+    private void copyAgain(long offset, long size, boolean gzip, OutputStream out) throws IOException {
+        InputStream fileIn = new FileInputStream(archive);
+
+        try (InputStream in = gzip ? new GZIPInputStream(fileIn, buffer.length) : fileIn) {
+            while (offset > 0) {
+                long skipped = in.skip(offset);
+                if (skipped <= 0 && in.read() < 0) throw new EOFException("archive " + archive + " got shorter");
+                offset -= Math.max(skipped, 1);
+            }
+
+            while (size > 0) {
+                int numRead = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+                if (numRead < 0) throw new EOFException("archive " + archive + " got shorter");
+
+                out.write(buffer, 0, numRead);
+                size -= numRead;
+            }
+        }
+        finally {
+            fileIn.close();
+        }
+    }
+
+    /**
+     * Keeps count of the bytes read from a stream, so that an entry can be found
+     * again in it
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long count() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int numRead = in.read(b, off, len);
+            if (numRead > 0) count += numRead;
+            return numRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Holds a converted entry until it can be written after its header
+     */
+    private static class EntryBuffer extends OutputStream {
+
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+        private File         spillFile;
+        private OutputStream spill;
+        private long         size;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (spill == null && memory.size() + len > MEMORY_LIMIT) {
+                spillFile = File.createTempFile("any2utf8", ".tmp");
+
+                try {
+                    spill = new BufferedOutputStream(new FileOutputStream(spillFile), StreamTranscoder.BUFFER_SIZE);
+                }
+                finally {
+                    if (spill == null) spillFile.delete();
+                }
+
+                memory.writeTo(spill);
+                memory.reset();
+            }
+
+            if (spill != null) spill.write(b, off, len);
+            else memory.write(b, off, len);
+
+            size += len;
+        }
+
+        long size() {
+            return size;
+        }
+
+        void writeTo(OutputStream out, byte[] buffer) throws IOException {
+            if (spill == null) {
+                memory.writeTo(out);
+                return;
+            }
+
+            spill.close();
+
+            try (InputStream in = new FileInputStream(spillFile)) {
+                int numRead;
+                while ((numRead = in.read(buffer)) > 0) out.write(buffer, 0, numRead);
+            }
+        }
+
+        void reset() throws IOException {
+            close();
+            memory.reset();
+            size = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spill == null) return;
+
+            // whatever went wrong with the output, the temporary file goes
+            try {
+                spill.close();
+            }
+            finally {
+                spill = null;
+                spillFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+/**
+ * Tells the charset of files which start with a byte-order-mark
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class BomDetector implements EncodingDetector {
+
+    @Override
+    public String getName() {
+        return "bom";
+    }
+
+    @Override
+    public Detection detect(DetectionSample sample) {
+        byte[] b = sample.getHead();
+
+        if (startsWith(b, 0xef, 0xbb, 0xbf)) return new Detection("UTF-8", 100);
+
+        // UTF-32 first, its little-endian BOM starts like UTF-16's
+        if (startsWith(b, 0xff, 0xfe, 0x00, 0x00)) return new Detection("UTF-32LE", 100);
+        if (startsWith(b, 0x00, 0x00, 0xfe, 0xff)) return new Detection("UTF-32BE", 100);
+        if (startsWith(b, 0xff, 0xfe)) return new Detection("UTF-16LE", 100);
+        if (startsWith(b, 0xfe, 0xff)) return new Detection("UTF-16BE", 100);
+
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int... prefix) {
+        if (bytes.length < prefix.length) return false;
+
+        for (int i = 0; i < prefix.length; i++) {
+            if ((bytes[i] & 0xff) != prefix[i]) return false;
+        }
+
+        return true;
+    }
+}
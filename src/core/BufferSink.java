@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Keeps events in memory, up to a maximum number of lines for each type of
+ * event; lines beyond that are counted but not kept, so that a huge conversion
+ * does not fill the heap with its log
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class BufferSink implements EventSink {
+
+    private final int maxLines;
+
+    private final Map<ConversionEvent.Type, StringBuilder> text    = new EnumMap<>(ConversionEvent.Type.class);
+    private final Map<ConversionEvent.Type, Integer>       lines   = new EnumMap<>(ConversionEvent.Type.class);
+    private final Map<ConversionEvent.Type, Integer>       dropped = new EnumMap<>(ConversionEvent.Type.class);
+
+    public BufferSink(int maxLines) {
+        this.maxLines = maxLines;
+
+        for (ConversionEvent.Type type : ConversionEvent.Type.values()) {
+            text.put(type, new StringBuilder());
+            lines.put(type, 0);
+            dropped.put(type, 0);
+        }
+    }
+
+    @Override
+    public synchronized void accept(ConversionEvent event) {
+        ConversionEvent.Type type = event.getType();
+
+        if (lines.get(type) >= maxLines) {
+            dropped.put(type, dropped.get(type) + 1);
+            return;
+        }
+
+        text.get(type).append(event).append(System.getProperty("line.separator"));
+        lines.put(type, lines.get(type) + 1);
+    }
+
+    /**
+     * @param type
+     * @return all lines kept for the given type of event, followed by a note
+     * saying how many were left out
+     */
+    public synchronized String getText(ConversionEvent.Type type) {
+        if (dropped.get(type) == 0) return text.get(type).toString();
+
+        return text.get(type) + "(" + dropped.get(type) + " more lines not shown)" +
+                System.getProperty("line.separator");
+    }
+
+    public synchronized void clear() {
+        for (ConversionEvent.Type type : ConversionEvent.Type.values()) {
+            text.get(type).setLength(0);
+            lines.put(type, 0);
+            dropped.put(type, 0);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A fast, non-cryptographic 64-bit hash of file contents, good enough to tell
+ * whether a file changed or to spot likely duplicates (which must then be
+ * confirmed by comparing them). Input is consumed eight bytes at a time.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+final class ContentHash {
+
+    private static final long PRIME_1 = 0x9e3779b185ebca87L;
+    private static final long PRIME_2 = 0xc2b2ae3d27d4eb4fL;
+    private static final long PRIME_3 = 0x165667b19e3779f9L;
+
+    private ContentHash() {
+    }
+
+    /**
+     * Hash everything that can be read from a channel
+     * @param in
+     * @param buffer a heap buffer to read into, its content is overwritten
+     * @return
+     * @throws IOException
+     */
+    static long hash(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        long hash = PRIME_3;
+        long length = 0;
+
+        try {
+            buffer.clear();
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+
+                while (buffer.remaining() >= 8) {
+                    hash = round(hash, buffer.getLong());
+                }
+
+                length += buffer.position();
+
+                // keep the last few bytes for the next round
+                buffer.compact();
+            }
+
+            buffer.flip();
+            length += buffer.remaining();
+
+            while (buffer.hasRemaining()) {
+                hash = round(hash, buffer.get() & 0xff);
+            }
+        }
+        finally {
+            buffer.clear();
+            buffer.order(order);
+        }
+
+        return avalanche(hash ^ length);
+    }
+
+    private static long round(long hash, long value) {
+        hash ^= Long.rotateLeft(value * PRIME_2, 31) * PRIME_1;
+        return Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_3;
+    }
+
+    private static long avalanche(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+}
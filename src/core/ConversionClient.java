@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Asks a ConversionServer running on the same machine to convert files, see
+ * there for the protocol. The connection is kept open between conversions.
+ * The server must have been started by the same user, whose token file
+ * (see ConversionServer.getTokenFile) the client reads.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ConversionClient implements Closeable {
+
+    private final Socket         socket;
+    private final BufferedReader in;
+    private final PrintWriter    out;
+
+    /**
+     * @param port
+     * @throws IOException if the token file can't be read, the server can't be
+     * reached or does not accept the token
+     */
+    public ConversionClient(int port) throws IOException {
+        File tokenFile = ConversionServer.getTokenFile(port);
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+
+        try {
+            in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+
+            out.println(ConversionServer.AUTH + ConversionServer.SEPARATOR + token);
+            out.flush();
+
+            String reply = in.readLine();
+            if (!(ConversionServer.DONE + ConversionServer.SEPARATOR + ConversionServer.AUTHORIZED).equals(reply)) {
+                throw new IOException("the server on port " + port + " did not accept the token in " + tokenFile);
+            }
+        }
+        catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param input
+     * @param output output file, or directory to create it in
+     * @param sink receives the events of the conversion, may be null
+     * @return the name of the ErrorCode the conversion ended with, or BAD_REQUEST
+     * if the server did not understand the request
+     * @throws IOException if the connection was lost
+     */
+    public String convert(File input, File output, EventSink sink) throws IOException {
+        String inputPath  = input.getAbsolutePath();
+        String outputPath = output.getAbsolutePath();
+
+        if (!isSendable(inputPath) || !isSendable(outputPath)) {
+            throw new IllegalArgumentException("paths containing tabs or line breaks can't be sent to the server");
+        }
+
+        out.println(ConversionServer.CONVERT + ConversionServer.SEPARATOR + inputPath +
+                ConversionServer.SEPARATOR + outputPath);
+        out.flush();
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] fields = line.split(ConversionServer.SEPARATOR, 2);
+            if (fields.length < 2) continue;
+
+            if (fields[0].equals(ConversionServer.DONE)) return fields[1];
+
+            if (sink != null) {
+                sink.accept(new ConversionEvent(ConversionEvent.Type.valueOf(fields[0]), input, fields[1]));
+            }
+        }
+
+        throw new EOFException("connection closed by the server");
+    }
+
+    private static boolean isSendable(String path) {
+        return path.indexOf('\t') < 0 && path.indexOf('\n') < 0 && path.indexOf('\r') < 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
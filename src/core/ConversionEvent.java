@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+
+/**
+ * Something worth reporting that happened while converting a file or directory
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ConversionEvent {
+
+    public enum Type {
+        MESSAGE,
+        WARNING,
+        ERROR
+    }
+
+    private final Type   type;
+    private final File   file;
+    private final String message;
+
+    public ConversionEvent(Type type, File file, String message) {
+        this.type    = type;
+        this.file    = file;
+        this.message = message;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the file or directory the event is about, null if it is not about a specific one
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the event formatted as a line of the conversion log
+     */
+    @Override
+    public String toString() {
+        switch (type) {
+            case ERROR:
+                return "Error: " + message;
+            case WARNING:
+                return "Warning: " + message;
+            default:
+                return message;
+        }
+    }
+}
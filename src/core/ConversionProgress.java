@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+import java.io.File;
+
+/**
+ * How far a conversion has got at a given moment
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ConversionProgress {
+
+    private final long filesDone;
+    private final long filesTotal;
+    private final long bytesDone;
+    private final long bytesTotal;
+    private final long elapsedNanos;
+    private final File currentFile;
+
+    public ConversionProgress(long filesDone, long filesTotal, long bytesDone, long bytesTotal,
+            long elapsedNanos, File currentFile) {
+        this.filesDone    = filesDone;
+        this.filesTotal   = filesTotal;
+        this.bytesDone    = bytesDone;
+        this.bytesTotal   = bytesTotal;
+        this.elapsedNanos = elapsedNanos;
+        this.currentFile  = currentFile;
+    }
+
+    public long getFilesDone() {
+        return filesDone;
+    }
+
+    /**
+     * @return the number of files found by a quick scan of the input before the conversion started
+     */
+    public long getFilesTotal() {
+        return filesTotal;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    /**
+     * @return the size of the files found by a quick scan of the input before the conversion started
+     */
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the file that was being converted last, null if none
+     */
+    public File getCurrentFile() {
+        return currentFile;
+    }
+
+    /**
+     * @return an estimate of the time left based on the bytes converted so far, -1 if there is none yet
+     */
+    public long getRemainingNanos() {
+        if (bytesDone == 0 || elapsedNanos == 0) return -1;
+        return (long) ((double) elapsedNanos / bytesDone * Math.max(0, bytesTotal - bytesDone));
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a converter warm in a long-running process and converts files for
+ * clients (see ConversionClient) connecting to a port of the loopback interface,
+ * so that converting a file no longer costs the start-up of a JVM and of the
+ * encoding detector.
+ *
+ * Any local user could connect to the port, so the server writes a random token
+ * to a file only its owner can read (see getTokenFile) and a client has to send
+ * it before anything else. The token file is deleted when the server is closed.
+ *
+ * The protocol is made of UTF-8 lines whose fields are separated by tabs. The
+ * client first sends
+ *
+ *     AUTH  token
+ *
+ * which the server answers with DONE AUTHORIZED, or DONE UNAUTHORIZED before
+ * closing the connection. The client then sends any number of requests on the
+ * same connection, one at a time:
+ *
+ *     CONVERT  input file  output file or directory
+ *
+ * with absolute paths, and the server answers each of them with the events of
+ * the conversion followed by its outcome:
+ *
+ *     MESSAGE|WARNING|ERROR  text
+ *     DONE  name of an ErrorCode, or BAD_REQUEST
+ *
+ * Each connection is served by a thread of its own, connections beyond the
+ * given number wait for one of them to be closed. Each thread converts with a
+ * converter of its own made from the given one (see Converter(Converter)), so
+ * that warnings and progress of conversions running side by side don't mix;
+ * they share its settings, detector chain, detection cache and statistics.
+ * Only files can be converted: directory conversions change the output tree as
+ * a whole and would trip over each other.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ConversionServer implements Closeable {
+
+    static final String AUTH         = "AUTH";
+    static final String AUTHORIZED   = "AUTHORIZED";
+    static final String UNAUTHORIZED = "UNAUTHORIZED";
+    static final String CONVERT      = "CONVERT";
+    static final String DONE         = "DONE";
+    static final String BAD_REQUEST  = "BAD_REQUEST";
+    static final String SEPARATOR    = "\t";
+
+    private final Converter       converter;
+    private final ServerSocket    socket;
+    private final ExecutorService handlers;
+    private final boolean         addBom;
+    private final File            tokenFile;
+    private final byte[]          token;
+
+    // converters borrowed by the thread serving a connection, never more than connections
+    private final ConcurrentLinkedQueue<Converter> sessions = new ConcurrentLinkedQueue<>();
+
+    // connections being served, see shutdown
+    private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    // where the events of the conversion running on each thread are sent
+    private final ThreadLocal<PrintWriter> replies = new ThreadLocal<>();
+
+    /**
+     * @param converter
+     * @param port 0 for any free port (see getPort)
+     * @param connections how many connections are served at the same time
+     * @param addBom
+     * @throws IOException if the port can't be listened to or the token file can't be written
+     */
+    public ConversionServer(Converter converter, int port, int connections, boolean addBom) throws IOException {
+        this.converter = converter;
+        this.addBom    = addBom;
+
+        // only local processes may ask for files to be read and written
+        socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) hex.append(String.format("%02x", b));
+
+        token     = hex.toString().getBytes(StandardCharsets.US_ASCII);
+        tokenFile = getTokenFile(getPort());
+
+        try {
+            writeToken(tokenFile.toPath(), token);
+        }
+        catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+
+        handlers = Executors.newFixedThreadPool(connections);
+
+        // a long-running process can't keep the log of every conversion in memory
+        converter.setLogBufferSize(0);
+        converter.addSink(new EventSink() {
+            @Override
+            public void accept(ConversionEvent event) {
+                PrintWriter reply = replies.get();
+                if (reply != null) reply(reply, event.getType().name(), event.getMessage());
+            }
+        });
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * @param port
+     * @return the file holding the token of the server listening on port, in the
+     * home directory of the user
+     */
+    public static File getTokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".any2utf8-server-" + port);
+    }
+
+    private static void writeToken(Path path, byte[] token) throws IOException {
+        // left over by a server which was killed, or planted by someone else
+        Files.deleteIfExists(path);
+
+        try {
+            // readable by its owner from the start, never by anyone else
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException ex) {
+            // not a POSIX file system (Windows), where the home directory is private already
+            Files.createFile(path);
+        }
+
+        Files.write(path, token);
+    }
+
+    /**
+     * Accept connections until the server is closed
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        while (!socket.isClosed()) {
+            final Socket client;
+
+            try {
+                client = socket.accept();
+            }
+            catch (SocketException ex) {
+                if (socket.isClosed()) return;
+                throw ex;
+            }
+
+            try {
+                handlers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                // closed in the meantime
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections and delete the token file; connections already
+     * open are served until their clients close them
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        handlers.shutdown();
+        Files.deleteIfExists(tokenFile.toPath());
+    }
+
+    /**
+     * Close the server and wait for the conversions in progress: clients which
+     * are still connected after timeout are disconnected, the file each of them
+     * is having converted is finished all the same
+     * @param timeout
+     * @param unit
+     * @return true if all connections were done with, false if some conversion
+     * took longer than timeout after its client was disconnected
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        close();
+
+        if (handlers.awaitTermination(timeout, unit)) return true;
+
+        for (Socket client : clients) {
+            try {
+                client.close();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(ConversionServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        return handlers.awaitTermination(timeout, unit);
+    }
+
+    private void handle(Socket client) {
+        Converter session = sessions.poll();
+        if (session == null) session = new Converter(converter);
+
+        clients.add(client);
+
+        try (Socket s = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+
+            boolean authorized = isAuthorized(in.readLine());
+            out.println(DONE + SEPARATOR + (authorized ? AUTHORIZED : UNAUTHORIZED));
+            out.flush();
+
+            if (!authorized) return;
+
+            replies.set(out);
+
+            String request;
+            while ((request = in.readLine()) != null) {
+                out.println(DONE + SEPARATOR + convert(session, request, out));
+                out.flush();
+
+                // nobody reads them, and a long-lived connection would pile them up
+                session.clearWarnings();
+            }
+        }
+        catch (SocketException ex) {
+            // disconnected by shutdown, or by the client
+        }
+        catch (IOException ex) {
+            Logger.getLogger(ConversionServer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally {
+            replies.remove();
+            clients.remove(client);
+            sessions.offer(session);
+        }
+    }
+
+    private boolean isAuthorized(String line) {
+        if (line == null || !line.startsWith(AUTH + SEPARATOR)) return false;
+
+        // in constant time, so that the token can't be guessed byte by byte
+        byte[] given = line.substring(AUTH.length() + SEPARATOR.length()).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(given, token);
+    }
+
+    /**
+     * @param session the converter of the thread
+     * @param request
+     * @param out
+     * @return the outcome of the request
+     */
+    private String convert(Converter session, String request, PrintWriter out) {
+        String[] fields = request.split(SEPARATOR, -1);
+
+        if (fields.length != 3 || !fields[0].equals(CONVERT)) {
+            reply(out, ConversionEvent.Type.ERROR.name(), "malformed request: " + request);
+            return BAD_REQUEST;
+        }
+
+        File input  = new File(fields[1]);
+        File output = new File(fields[2]);
+
+        if (!input.isAbsolute() || !output.isAbsolute()) {
+            reply(out, ConversionEvent.Type.ERROR.name(), "paths must be absolute: " + request);
+            return BAD_REQUEST;
+        }
+
+        if (input.isDirectory()) {
+            reply(out, ConversionEvent.Type.ERROR.name(), input + " is a directory, only files can be converted by the server.");
+            return ErrorCode.INVALID_INPUT_FILE.name();
+        }
+
+        // same as the console: create a file with the same name in the directory
+        if (output.isDirectory()) output = new File(output, input.getName());
+
+        return session.convertFile(input, output, addBom).name();
+    }
+
+    private static void reply(PrintWriter out, String type, String text) {
+        // a line break would end the event early
+        out.println(type + SEPARATOR + text.replace('\n', ' ').replace('\r', ' '));
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what a Converter does: files, bytes in and out, time spent in each
+ * stage of a conversion and charsets detected. Counters are LongAdders updated
+ * at most once per buffer, so they can be left on all the time.
+ *
+ * Statistics can be published as an MXBean with registerMBean() and read
+ * with jconsole or any other JMX client while a conversion is running.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ConversionStatistics implements ConversionStatisticsMXBean {
+
+    private static final AtomicInteger MBEAN_ID = new AtomicInteger();
+
+    private final LongAdder filesConverted = new LongAdder();
+    private final LongAdder fastPathFiles  = new LongAdder();
+    private final LongAdder fastPathBytes  = new LongAdder();
+    private final LongAdder fastPathNanos  = new LongAdder();
+    private final LongAdder bytesIn        = new LongAdder();
+    private final LongAdder bytesOut       = new LongAdder();
+    private final LongAdder detectNanos    = new LongAdder();
+    private final LongAdder readNanos      = new LongAdder();
+    private final LongAdder decodeNanos    = new LongAdder();
+    private final LongAdder encodeNanos    = new LongAdder();
+    private final LongAdder writeNanos     = new LongAdder();
+    private final LongAdder duplicateFiles = new LongAdder();
+    private final LongAdder duplicateBytes = new LongAdder();
+    private final LongAdder duplicateNanos = new LongAdder();
+
+    private final ConcurrentMap<String, LongAdder> charsets = new ConcurrentHashMap<>();
+
+    // runs, answers taken and time spent by each detector of the DetectorChain
+    private final ConcurrentMap<String, LongAdder[]> detectors = new ConcurrentHashMap<>();
+
+    // queues of the pipeline running at the moment (if any) and the most files seen in each
+    private volatile Map<String, BlockingQueue<?>> queues = Collections.emptyMap();
+    private final ConcurrentMap<String, AtomicInteger> peakDepths = new ConcurrentHashMap<>();
+
+    private volatile long startNanos = System.nanoTime();
+
+    private ObjectName objectName;
+
+    void fileConverted(String charset, long bytes) {
+        filesConverted.increment();
+        bytesIn.add(bytes);
+
+        LongAdder count = charsets.get(charset);
+        if (count == null) {
+            LongAdder newCount = new LongAdder();
+            count = charsets.putIfAbsent(charset, newCount);
+            if (count == null) count = newCount;
+        }
+        count.increment();
+    }
+
+    void fastPathFile(long bytes, long nanos) {
+        fastPathFiles.increment();
+        fastPathBytes.add(bytes);
+        fastPathNanos.add(nanos);
+    }
+
+    /**
+     * @param bytes size of a file which was found to be a duplicate
+     * @param nanos processor time it took to convert the file it is a copy of
+     */
+    void duplicateFile(long bytes, long nanos) {
+        duplicateFiles.increment();
+        duplicateBytes.add(bytes);
+        duplicateNanos.add(nanos);
+    }
+
+    void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void addDetectNanos(long nanos) {
+        detectNanos.add(nanos);
+    }
+
+    void addReadNanos(long nanos) {
+        readNanos.add(nanos);
+    }
+
+    void addDecodeNanos(long nanos) {
+        decodeNanos.add(nanos);
+    }
+
+    void addEncodeNanos(long nanos) {
+        encodeNanos.add(nanos);
+    }
+
+    void addWriteNanos(long nanos) {
+        writeNanos.add(nanos);
+    }
+
+    void detectorRun(String detector, long nanos) {
+        LongAdder[] counts = detectorCounts(detector);
+        counts[0].increment();
+        counts[2].add(nanos);
+    }
+
+    void detectorHit(String detector) {
+        detectorCounts(detector)[1].increment();
+    }
+
+    private LongAdder[] detectorCounts(String detector) {
+        LongAdder[] counts = detectors.get(detector);
+        if (counts == null) {
+            LongAdder[] newCounts = {new LongAdder(), new LongAdder(), new LongAdder()};
+            counts = detectors.putIfAbsent(detector, newCounts);
+            if (counts == null) counts = newCounts;
+        }
+        return counts;
+    }
+
+    /**
+     * @param queues queues of the pipeline starting now by name, or an empty map once it is done
+     */
+    void setQueues(Map<String, BlockingQueue<?>> queues) {
+        this.queues = queues;
+    }
+
+    /**
+     * Note how many files are waiting in a queue, right after one was added to it
+     * @param queue
+     * @param depth
+     */
+    void queueDepth(String queue, int depth) {
+        AtomicInteger peak = peakDepths.get(queue);
+        if (peak == null) {
+            AtomicInteger newPeak = new AtomicInteger();
+            peak = peakDepths.putIfAbsent(queue, newPeak);
+            if (peak == null) peak = newPeak;
+        }
+
+        int current;
+        while (depth > (current = peak.get()) && !peak.compareAndSet(current, depth));
+    }
+
+    @Override
+    public long getFilesConverted() {
+        return filesConverted.sum();
+    }
+
+    @Override
+    public long getFastPathFiles() {
+        return fastPathFiles.sum();
+    }
+
+    @Override
+    public long getFastPathBytes() {
+        return fastPathBytes.sum();
+    }
+
+    @Override
+    public long getFastPathNanos() {
+        return fastPathNanos.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDetectNanos() {
+        return detectNanos.sum();
+    }
+
+    @Override
+    public long getReadNanos() {
+        return readNanos.sum();
+    }
+
+    @Override
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    @Override
+    public long getEncodeNanos() {
+        return encodeNanos.sum();
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return writeNanos.sum();
+    }
+
+    @Override
+    public long getDuplicateFiles() {
+        return duplicateFiles.sum();
+    }
+
+    @Override
+    public long getDuplicateBytes() {
+        return duplicateBytes.sum();
+    }
+
+    @Override
+    public long getDuplicateNanos() {
+        return duplicateNanos.sum();
+    }
+
+    /**
+     * @return files converted per second of wall-clock time since the statistics were created or reset
+     */
+    @Override
+    public double getFilesPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? getFilesConverted() / seconds : 0;
+    }
+
+    @Override
+    public Map<String, Long> getCharsetHistogram() {
+        Map<String, Long> histogram = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder> entry : charsets.entrySet()) {
+            histogram.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return histogram;
+    }
+
+    @Override
+    public Map<String, Long> getDetectorRuns() {
+        return detectorHistogram(0);
+    }
+
+    @Override
+    public Map<String, Long> getDetectorHits() {
+        return detectorHistogram(1);
+    }
+
+    @Override
+    public Map<String, Long> getDetectorNanos() {
+        return detectorHistogram(2);
+    }
+
+    private Map<String, Long> detectorHistogram(int index) {
+        Map<String, Long> histogram = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder[]> entry : detectors.entrySet()) {
+            histogram.put(entry.getKey(), entry.getValue()[index].sum());
+        }
+
+        return histogram;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+
+        for (Map.Entry<String, BlockingQueue<?>> entry : queues.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().size());
+        }
+
+        return depths;
+    }
+
+    @Override
+    public Map<String, Integer> getPeakQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+
+        for (Map.Entry<String, AtomicInteger> entry : peakDepths.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return depths;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : new LongAdder[] {filesConverted, fastPathFiles, fastPathBytes, fastPathNanos,
+                bytesIn, bytesOut, detectNanos, readNanos, decodeNanos, encodeNanos, writeNanos,
+                duplicateFiles, duplicateBytes, duplicateNanos}) {
+            adder.reset();
+        }
+
+        charsets.clear();
+        detectors.clear();
+        peakDepths.clear();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Publish the statistics in the platform MBean server
+     * @return the name they were registered with
+     */
+    public synchronized ObjectName registerMBean() {
+        if (objectName != null) return objectName;
+
+        try {
+            ObjectName name = new ObjectName("any2utf8:type=ConversionStatistics,id=" + MBEAN_ID.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        }
+        catch (JMException ex) {
+            Logger.getLogger(ConversionStatistics.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        return objectName;
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException ex) {
+            Logger.getLogger(ConversionStatistics.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        objectName = null;
+    }
+
+    /**
+     * @return a few lines summing up the statistics, for printing at the end of a run
+     */
+    public String summary() {
+        String nl = System.getProperty("line.separator");
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Files converted: %d (%.1f files/s)", getFilesConverted(), getFilesPerSecond())).append(nl);
+        sb.append(String.format("Bytes in: %d, bytes out: %d (%.1f MB/s in)", getBytesIn(), getBytesOut(),
+                seconds > 0 ? getBytesIn() / (1024.0 * 1024.0) / seconds : 0)).append(nl);
+        sb.append(String.format("Time per stage (all threads): detect %.3fs, read %.3fs, decode %.3fs, " +
+                "encode %.3fs, write %.3fs", getDetectNanos() / 1e9, getReadNanos() / 1e9,
+                getDecodeNanos() / 1e9, getEncodeNanos() / 1e9, getWriteNanos() / 1e9)).append(nl);
+        sb.append("Charsets: ").append(getCharsetHistogram()).append(nl);
+
+        if (getDuplicateFiles() > 0) {
+            sb.append(String.format("Duplicates: %d files, %d bytes not converted again (%.3fs of processor time saved)",
+                    getDuplicateFiles(), getDuplicateBytes(), getDuplicateNanos() / 1e9)).append(nl);
+        }
+
+        if (!detectors.isEmpty()) {
+            sb.append("Detectors (answers taken/runs, time):");
+            for (Map.Entry<String, LongAdder[]> entry : new TreeMap<>(detectors).entrySet()) {
+                LongAdder[] counts = entry.getValue();
+                sb.append(String.format(" %s %d/%d %.3fs", entry.getKey(), counts[1].sum(),
+                        counts[0].sum(), counts[2].sum() / 1e9));
+            }
+            sb.append(nl);
+        }
+        if (!peakDepths.isEmpty()) sb.append("Peak queue depths: ").append(getPeakQueueDepths()).append(nl);
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.util.Map;
+
+/**
+ * Management interface of ConversionStatistics, all times are in nanoseconds
+ * summed over all conversion threads
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public interface ConversionStatisticsMXBean {
+
+    long getFilesConverted();
+
+    long getFastPathFiles();
+
+    long getFastPathBytes();
+
+    long getFastPathNanos();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDetectNanos();
+
+    long getReadNanos();
+
+    long getDecodeNanos();
+
+    long getEncodeNanos();
+
+    long getWriteNanos();
+
+    /**
+     * @return files whose output was copied or linked from an identical file's (see DedupMode)
+     */
+    long getDuplicateFiles();
+
+    long getDuplicateBytes();
+
+    /**
+     * @return processor time the conversion of the duplicates would have taken,
+     * as measured on the files they are copies of
+     */
+    long getDuplicateNanos();
+
+    double getFilesPerSecond();
+
+    /**
+     * @return how many files were found to be in each charset
+     */
+    Map<String, Long> getCharsetHistogram();
+
+    /**
+     * @return how many files each detector of the DetectorChain was asked about,
+     * lookups in the DetectionCache are counted as "cache"
+     */
+    Map<String, Long> getDetectorRuns();
+
+    /**
+     * @return how many times the answer of each detector was the one taken,
+     * its hit rate is this divided by its runs
+     */
+    Map<String, Long> getDetectorHits();
+
+    /**
+     * @return time spent in each detector
+     */
+    Map<String, Long> getDetectorNanos();
+
+    /**
+     * @return how many files are waiting for each stage of the pipeline running at
+     * the moment (see ExecutionMode.PIPELINE); a stage whose queue stays full is
+     * the one holding the others back
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * @return the most files seen waiting for each stage of the pipeline
+     */
+    Map<String, Integer> getPeakQueueDepths();
+
+    void reset();
+}
@@ -17,21 +17,29 @@
 
 package core;
 
-import com.ibm.icu.text.CharsetDetector;
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,65 +50,968 @@ import java.util.logging.Logger;
 public class Converter {
     
     private final ArrayList<WarningCode> warning = new ArrayList<>();
+
+    // buffers are borrowed by the thread converting a file and given back afterwards, so there
+    // are never more sets of buffers than files being converted at the same time
+    private final ConcurrentLinkedQueue<StreamTranscoder> transcoders = new ConcurrentLinkedQueue<>();
     
-    private String log;
-    private String errorLog;
-    private String warningLog;
+    // sinks every event is pushed to as it happens
+    private final CopyOnWriteArrayList<EventSink> sinks = new CopyOnWriteArrayList<>();
+
+    // keeps (part of) the log in memory for getLog(), getWarningLog() and getErrorLog()
+    private volatile BufferSink logBuffer;
+
+    private int threads;
+    private int maxOpenFiles;
+
+    // threads of each stage and files each stage can have waiting in ExecutionMode.PIPELINE
+    private final int[] stageThreads = new int[PipelineStage.values().length];
+    private int         stageQueueSize;
+
+    private boolean fastPath;
+    private long    mappingThreshold;
+    private boolean followLinks;
+
+    private boolean incremental;
+    private boolean hashContents;
+    private boolean deleteOrphans;
+
+    // state of the incremental conversion in progress, if any
+    private volatile Sync sync;
+
+    // null when duplicates are converted like any other file
+    private DedupMode dedupMode;
+
+    // duplicates found by the conversion in progress, if any
+    private volatile Deduplicator dedup;
+
+    private final ConversionStatistics statistics;
+
+    private final DetectorChain detectors;
+
+    // what was detected in earlier runs, if any
+    private volatile DetectionCache detectionCache;
+
+    private final ProgressTracker progress = new ProgressTracker();
+
+    // converts chunks of large files for all the threads converting them
+    private final ParallelTranscoder parallel;
+
+    private ExecutionMode executionMode;
     
+    private static final int DEFAULT_LOG_BUFFER_LINES = 10000;
+
+    // mapping is no faster than reading into heap buffers: from 1 to 256 MB both were
+    // within noise of each other, in the page cache (see MappedTranscodeBenchmark). It
+    // saves a copy and costs a mapping per window, which only pays off on large files
+    private static final long DEFAULT_MAPPING_THRESHOLD = 64L * 1024 * 1024;
+
+    // the detector never looks past the first 8000 bytes of its input
+    static final int DETECTION_SAMPLE_SIZE = 8000;
+
+    // how streams without a file (see convertStream) are called in the log
+    private static final String STANDARD_INPUT = "standard input";
+
+    // returned by syncEntry for files which need not be converted again
+    private static final Manifest.Entry UNCHANGED = new Manifest.Entry("", "", 0, 0, false, 0);
+
+    // charsets by the names the detector gives them
+    private static final ConcurrentHashMap<String, Charset> CHARSETS = new ConcurrentHashMap<>();
+
     public Converter() {
-        log          = "";
-        errorLog     = "";
-        warningLog   = "";        
+        statistics       = new ConversionStatistics();
+        detectors        = new DetectorChain();
+        parallel         = new ParallelTranscoder();
+        logBuffer        = new BufferSink(DEFAULT_LOG_BUFFER_LINES);
+        threads          = 1;
+        maxOpenFiles     = 256;
+        executionMode    = ExecutionMode.WORKER_POOL;
+        fastPath         = true;
+        mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+        followLinks      = true;
+        stageQueueSize   = 16;
+
+        stageThreads[PipelineStage.READ.ordinal()]      = 2;
+        stageThreads[PipelineStage.DETECT.ordinal()]    = 1;
+        stageThreads[PipelineStage.TRANSCODE.ordinal()] = Runtime.getRuntime().availableProcessors();
+        stageThreads[PipelineStage.WRITE.ordinal()]     = 1;
+    }
+
+    /**
+     * A converter with the settings, sinks, detector chain, detection cache,
+     * statistics and chunk threads of another, but with warnings, progress and
+     * buffers of its own, so that the two can convert files at the same time
+     * (see ConversionServer). It keeps no log in memory. Later changes to the
+     * settings of either are not seen by the other, except for the detector chain.
+     * @param settings
+     */
+    Converter(Converter settings) {
+        statistics       = settings.statistics;
+        detectors        = settings.detectors;
+        parallel         = settings.parallel;
+        detectionCache   = settings.detectionCache;
+        logBuffer        = null;
+        threads          = settings.threads;
+        maxOpenFiles     = settings.maxOpenFiles;
+        executionMode    = settings.executionMode;
+        fastPath         = settings.fastPath;
+        mappingThreshold = settings.mappingThreshold;
+        followLinks      = settings.followLinks;
+        stageQueueSize   = settings.stageQueueSize;
+        incremental      = settings.incremental;
+        hashContents     = settings.hashContents;
+        deleteOrphans    = settings.deleteOrphans;
+        dedupMode        = settings.dedupMode;
+
+        System.arraycopy(settings.stageThreads, 0, stageThreads, 0, stageThreads.length);
+        sinks.addAll(settings.sinks);
+    }
+
+    public void addSink(EventSink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(EventSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Set how many lines of each kind (messages, warnings, errors) are kept in memory
+     * for getLog(), getWarningLog() and getErrorLog(); 0 keeps nothing, which is
+     * what you want when events are already sent to a sink
+     * @param lines
+     */
+    public void setLogBufferSize(int lines) {
+        logBuffer = lines > 0 ? new BufferSink(lines) : null;
+    }
+
+    /**
+     * Enable or disable the fast path: files which are already ASCII or valid UTF-8
+     * are recognised by a quick scan and copied without running the detector
+     * @param fastPath
+     */
+    public void setFastPath(boolean fastPath) {
+        this.fastPath = fastPath;
+    }
+
+    public boolean isFastPath() {
+        return fastPath;
+    }
+
+    /**
+     * Files of this size or larger are read through memory mappings instead of
+     * being copied into buffers on the Java heap, Long.MAX_VALUE disables mapping.
+     * Neither way is measurably faster when the file is in the page cache, the
+     * default (64 MB) only keeps the cost of mapping away from smaller files
+     * @param mappingThreshold size in bytes
+     */
+    public void setMappingThreshold(long mappingThreshold) {
+        this.mappingThreshold = mappingThreshold;
+    }
+
+    public long getMappingThreshold() {
+        return mappingThreshold;
+    }
+
+    /**
+     * Set whether convertDir follows symbolic links found in the input directory
+     * (directories which would contain themselves are skipped with a warning)
+     * or skips them
+     * @param followLinks
+     */
+    public void setFollowLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+    }
+
+    public boolean isFollowLinks() {
+        return followLinks;
+    }
+
+    /**
+     * @return the detectors telling the charset of files which are not on the fast path;
+     * hints and other detectors can be added to it, and its threshold changed
+     */
+    public DetectorChain getDetectorChain() {
+        return detectors;
+    }
+
+    /**
+     * Have the detectors' answers remembered from one run to the next; files which
+     * have not changed since are not given to the detectors again
+     * @param detectionCache null for none, it is up to the caller to close it
+     */
+    public void setDetectionCache(DetectionCache detectionCache) {
+        this.detectionCache = detectionCache;
+    }
+
+    public DetectionCache getDetectionCache() {
+        return detectionCache;
+    }
+
+    /**
+     * @return counters of everything this converter did, see registerMBean() to publish them through JMX
+     */
+    public ConversionStatistics getStatistics() {
+        return statistics;
+    }
+
+    public long getFilesConverted() {
+        return statistics.getFilesConverted();
+    }
+
+    /**
+     * @return the number of files that were already ASCII or UTF-8 and were copied
+     */
+    public long getFastPathFiles() {
+        return statistics.getFastPathFiles();
+    }
+
+    public long getFastPathBytes() {
+        return statistics.getFastPathBytes();
+    }
+
+    /**
+     * @return time spent scanning and copying fast path files, summed over all threads
+     */
+    public long getFastPathNanos() {
+        return statistics.getFastPathNanos();
+    }
+
+    /**
+     * Set a listener to be told how many files and bytes have been converted so far;
+     * convertDir then starts with a quick scan of the input directory to find out
+     * how many there are in total
+     * @param listener null for none
+     */
+    public void setProgressListener(ProgressListener listener) {
+        progress.setListener(listener);
+    }
+
+    public ProgressListener getProgressListener() {
+        return progress.getListener();
+    }
+
+    /**
+     * Set a token that stops the conversion once it is cancelled. The file being
+     * converted is abandoned and its partial output deleted, and the conversion
+     * returns ErrorCode.CANCELLED.
+     * @param token null for none
+     */
+    public void setCancellationToken(CancellationToken token) {
+        progress.setToken(token);
+    }
+
+    public CancellationToken getCancellationToken() {
+        return progress.getToken();
+    }
+
+    /**
+     * Set the number of worker threads used by convertDir, 1 means
+     * that files are converted one at a time on the caller thread.
+     * Large files in charsets which can be cut into independent chunks
+     * are converted on this many threads too.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("number of threads must be at least 1");
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Set the maximum number of files converted at the same time
+     * when running in ExecutionMode.THREAD_PER_FILE
+     * @param maxOpenFiles
+     */
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        if (maxOpenFiles < 1) throw new IllegalArgumentException("maximum number of open files must be at least 1");
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * Set the number of threads of a stage of the pipeline, when running in
+     * ExecutionMode.PIPELINE
+     * @param stage
+     * @param threads
+     */
+    public void setStageThreads(PipelineStage stage, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("number of threads must be at least 1");
+        stageThreads[stage.ordinal()] = threads;
+    }
+
+    public int getStageThreads(PipelineStage stage) {
+        return stageThreads[stage.ordinal()];
+    }
+
+    /**
+     * Set how many files can wait for each stage of the pipeline; a stage which
+     * gets ahead of the next one waits once the queue between them is full, which
+     * also bounds the memory taken by files read in advance
+     * @param stageQueueSize
+     */
+    public void setStageQueueSize(int stageQueueSize) {
+        if (stageQueueSize < 1) throw new IllegalArgumentException("queue size must be at least 1");
+        this.stageQueueSize = stageQueueSize;
+    }
+
+    public int getStageQueueSize() {
+        return stageQueueSize;
     }
     
+    /**
+     * In incremental mode convertDir accepts a non-empty output directory and keeps
+     * a manifest of the files it converted in it; when converting the same directory
+     * again, only files which are new or changed since the last run are converted
+     * @param incremental
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * In incremental mode, also record a hash of each file's contents, so that a file
+     * whose modification time changed but whose content did not is not converted again
+     * @param hashContents
+     */
+    public void setHashContents(boolean hashContents) {
+        this.hashContents = hashContents;
+    }
+
+    public boolean isHashContents() {
+        return hashContents;
+    }
+
+    /**
+     * In incremental mode, delete converted files whose input file no longer exists
+     * @param deleteOrphans
+     */
+    public void setDeleteOrphans(boolean deleteOrphans) {
+        this.deleteOrphans = deleteOrphans;
+    }
+
+    public boolean isDeleteOrphans() {
+        return deleteOrphans;
+    }
+
+    /**
+     * Have convertDir convert files with the same contents only once: the outputs
+     * of the others are copied or linked from the first one's once all files have
+     * been converted. Files of the same size are compared by hash and then in full.
+     * @param dedupMode how the other outputs are made, null to convert every file
+     */
+    public void setDedupMode(DedupMode dedupMode) {
+        this.dedupMode = dedupMode;
+    }
+
+    public DedupMode getDedupMode() {
+        return dedupMode;
+    }
+
     public ErrorCode convertDir(File inputDir, File outputDir, boolean addBom) {
         ErrorCode errorCode = dirPathVerifier(inputDir, outputDir);
         
         if (!errorCode.equals(ErrorCode.OK)) return errorCode;
 
-        for (String fileName : inputDir.list()) {
-            File input  = new File(inputDir + File.separator + fileName);
-            File output = new File(outputDir + File.separator + fileName);
+        if (progress.getListener() != null) {
+            long[] totals = new long[2];
+            scanTree(inputDir, totals);
+            progress.start(totals[0], totals[1]);
+        }
+        else {
+            progress.start(0, 0);
+        }
 
-            if (input.isDirectory()) {
-                output.mkdir();
-                convertDir(input, output, addBom);
-                continue;
-            }
+        if (!incremental) {
+            convertTree(inputDir, outputDir, addBom);
+            return finishRun(inputDir, errorCode);
+        }
 
-            convertFile(input, output, addBom);
+        File manifestFile = new File(outputDir, Manifest.FILE_NAME);
+
+        try {
+            sync = new Sync(inputDir, outputDir, Manifest.load(manifestFile));
         }
-        
+        catch (IOException ex) {
+            logError(manifestFile, "could not read manifest " + manifestFile + ": " + ex.getMessage());
+            return ErrorCode.INVALID_MANIFEST;
+        }
+
+        try {
+            convertTree(inputDir, outputDir, addBom);
+            finishSync(sync, progress.isCancelled());
+            sync.current.save(manifestFile);
+        }
+        catch (IOException ex) {
+            logError(manifestFile, "could not write manifest " + manifestFile + ": " + ex.getMessage());
+            return ErrorCode.INVALID_MANIFEST;
+        }
+        finally {
+            sync = null;
+        }
+
+        return finishRun(inputDir, errorCode);
+    }
+
+    private ErrorCode finishRun(File inputDir, ErrorCode errorCode) {
+        progress.notifyListener();
+
+        if (progress.isCancelled()) {
+            logWarning(inputDir, "conversion of " + inputDir + " was cancelled.");
+            return ErrorCode.CANCELLED;
+        }
+
         return errorCode;
     }
 
+    /**
+     * Count the files in a directory and its subdirectories and add up their sizes,
+     * without opening any of them
+     * @param dir
+     * @param totals number of files and bytes found so far
+     */
+    private void scanTree(File dir, final long[] totals) {
+        try {
+            new TreeWalker(followLinks).walk(dir, dir, new TreeWalker.Visitor() {
+                @Override
+                public boolean enterDirectory(File input, File output) {
+                    return !progress.isCancelled();
+                }
+
+                @Override
+                public boolean file(File input, File output) {
+                    totals[0]++;
+                    totals[1] += input.length();
+                    return !progress.isCancelled();
+                }
+
+                @Override
+                public void skipped(File input, String reason) {
+                    // the conversion will report it
+                }
+            });
+        }
+        catch (IOException ex) {
+            // the conversion will report it
+        }
+    }
+
+    /**
+     * Convert a directory whose parameters have already been verified: the tree is
+     * walked on the caller thread, which either converts the files itself or hands
+     * them over to an executor, waiting whenever too many are in its queue
+     * @param inputDir
+     * @param outputDir
+     * @param addBom
+     */
+    private void convertTree(File inputDir, File outputDir, final boolean addBom) {
+        final ExecutorService executor;
+        final Semaphore       slots;
+        final Pipeline        pipeline;
+
+        Deduplicator run = dedupMode != null ? new Deduplicator(dedupMode) : null;
+        dedup = run;
+
+        if (executionMode.equals(ExecutionMode.PIPELINE)) {
+            executor = null;
+            slots    = null;
+            pipeline = new Pipeline(this, statistics, progress, stageThreads, stageQueueSize, fastPath, addBom);
+        }
+        else if (executionMode.equals(ExecutionMode.THREAD_PER_FILE)) {
+            executor = newThreadPerFileExecutor();
+            slots    = new Semaphore(maxOpenFiles);
+            pipeline = null;
+        }
+        else if (threads > 1) {
+            // a few files per thread waiting, so that workers never run dry
+            executor = Executors.newFixedThreadPool(threads);
+            slots    = new Semaphore(threads * 4);
+            pipeline = null;
+        }
+        else {
+            executor = null;
+            slots    = null;
+            pipeline = null;
+        }
+
+        try {
+            new TreeWalker(followLinks).walk(inputDir, outputDir, new TreeWalker.Visitor() {
+                @Override
+                public boolean enterDirectory(File input, File output) {
+                    if (progress.isCancelled()) return false;
+
+                    output.mkdir();
+                    return dirPathVerifier(input, output).equals(ErrorCode.OK);
+                }
+
+                @Override
+                public boolean file(File input, File output) {
+                    if (progress.isCancelled()) return false;
+
+                    if (executor == null && pipeline == null) {
+                        processFile(input, output, addBom);
+                        return true;
+                    }
+
+                    try {
+                        if (pipeline != null) pipelineFile(input, output, pipeline);
+                        else submitFile(input, output, addBom, executor, slots);
+                        return true;
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+
+                @Override
+                public void skipped(File input, String reason) {
+                    logWarning(input, "skipping " + input + ", " + reason + ".");
+                }
+            });
+        }
+        catch (IOException ex) {
+            logError(inputDir, "could not read directory " + inputDir + ": " + ex.getMessage());
+        }
+        finally {
+            if (executor != null) {
+                executor.shutdown();
+                awaitTermination(executor);
+            }
+
+            if (pipeline != null) pipeline.finish();
+
+            if (run != null) {
+                finishDuplicates(run, addBom);
+                dedup = null;
+            }
+        }
+    }
+
+    /**
+     * Convert a file found while walking a directory, unless an incremental
+     * conversion finds it did not change since the last run
+     * @param input
+     * @param output
+     * @param addBom
+     */
+    private void processFile(File input, File output, boolean addBom) {
+        if (progress.isCancelled()) return;
+
+        StreamTranscoder transcoder = borrowTranscoder();
+        transcoder.fileStarted(input, input.length());
+        boolean duplicate = false;
+
+        try {
+            Manifest.Entry entry = syncEntry(input, output);
+            if (entry == UNCHANGED) return;
+
+            Deduplicator run = dedup;
+            if (run == null) {
+                finishFile(entry, convertFile(input, output, addBom, entry, transcoder));
+                return;
+            }
+
+            Deduplicator.Original original = run.claim(input, output, entry);
+
+            // duplicates are counted once they are dealt with, see finishDuplicates
+            duplicate = original == null;
+            if (duplicate) return;
+
+            long start = Deduplicator.cpuTime();
+            ErrorCode errorCode = convertFile(input, output, addBom, original.entry, transcoder);
+            original.done(errorCode, Deduplicator.cpuTime() - start);
+
+            finishFile(entry, errorCode);
+        }
+        finally {
+            if (!duplicate) transcoder.fileDone();
+            returnTranscoder(transcoder);
+        }
+    }
+
+    /**
+     * In an incremental conversion, find out whether a file needs to be converted again
+     * @param input
+     * @param output
+     * @return UNCHANGED if it does not (it is already in the new manifest), the entry to
+     * give convertFile if it does, or null if the conversion is not incremental
+     */
+    private Manifest.Entry syncEntry(File input, File output) {
+        Sync run = sync;
+
+        if (run == null) return null;
+
+        String inputPath  = relativePath(run.inputDir, input);
+        String outputPath = relativePath(run.outputDir, output);
+
+        long size         = input.length();
+        long lastModified = input.lastModified();
+
+        // whatever is left in the previous manifest at the end has disappeared from the input
+        Manifest.Entry previous = run.previous.remove(inputPath);
+
+        boolean hashed = false;
+        long    hash   = 0;
+
+        // output must still be there, unless the file was skipped last time
+        if (previous != null && (previous.charset == null || output.exists())) {
+            if (previous.size == size && previous.lastModified == lastModified) {
+                run.current.put(previous);
+                run.unchanged.incrementAndGet();
+                return UNCHANGED;
+            }
+
+            // touched but not modified
+            if (hashContents && previous.hashed && previous.size == size) {
+                hash   = hashFile(input);
+                hashed = true;
+
+                if (hash == previous.hash) {
+                    Manifest.Entry entry = new Manifest.Entry(inputPath, outputPath, size, lastModified, true, hash);
+                    entry.charset = previous.charset;
+                    run.current.put(entry);
+                    run.unchanged.incrementAndGet();
+                    return UNCHANGED;
+                }
+            }
+        }
+
+        if (hashContents && !hashed) {
+            hash   = hashFile(input);
+            hashed = true;
+        }
+
+        // replace the output of the previous run
+        if (output.exists()) output.delete();
+
+        return new Manifest.Entry(inputPath, outputPath, size, lastModified, hashed, hash);
+    }
+
+    /**
+     * Record a file in the new manifest once convertFile is done with it
+     * @param entry as returned by syncEntry
+     * @param errorCode what convertFile returned
+     */
+    void finishFile(Manifest.Entry entry, ErrorCode errorCode) {
+        Sync run = sync;
+
+        if (entry == null || run == null) return;
+
+        // files that failed or were cancelled are left out, so that they are tried again next time
+        if (errorCode.equals(ErrorCode.FILE_IS_EMPTY) ||
+                (errorCode.equals(ErrorCode.OK) && (entry.charset != null || entry.skipped))) {
+            run.current.put(entry);
+        }
+    }
+
+    /**
+     * Deal with files that were in the manifest but were not found in the input directory
+     * @param run
+     * @param cancelled if true, some of those might just not have been reached, so none
+     * of them is deleted
+     */
+    private void finishSync(Sync run, boolean cancelled) {
+        int deleted = 0;
+
+        for (String inputPath : run.previous.inputPaths()) {
+            Manifest.Entry entry = run.previous.get(inputPath);
+
+            if (deleteOrphans && !cancelled) {
+                File output = new File(run.outputDir, entry.outputPath.replace('/', File.separatorChar));
+                if (output.isFile() && output.delete()) deleted++;
+            }
+            else {
+                // keep track of it, it might be deleted by a later run
+                run.current.put(entry);
+            }
+        }
+
+        logMessage(run.inputDir, run.unchanged.get() + " files were unchanged since the last conversion" +
+                (deleteOrphans && !cancelled ? ", " + deleted + " converted files whose input is gone were deleted." : "."));
+    }
+
+    private long hashFile(File file) {
+        StreamTranscoder transcoder = borrowTranscoder();
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            return transcoder.hash(in.getChannel());
+        }
+        catch (IOException ex) {
+            Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        }
+        finally {
+            transcoders.offer(transcoder);
+        }
+    }
+
+    private static String relativePath(File root, File file) {
+        return root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * State of an incremental conversion
+     */
+    private static class Sync {
+
+        private final File       inputDir;
+        private final File       outputDir;
+        private final Manifest   previous;
+        private final Manifest   current   = new Manifest();
+        private final AtomicLong unchanged = new AtomicLong();
+
+        Sync(File inputDir, File outputDir, Manifest previous) {
+            this.inputDir  = inputDir;
+            this.outputDir = outputDir;
+            this.previous  = previous;
+        }
+    }
+
+    /**
+     * Hand a file to the executor as soon as one of the slots is free
+     * @param input
+     * @param output
+     * @param addBom
+     * @param executor
+     * @param slots
+     * @throws InterruptedException
+     */
+    private void submitFile(final File input, final File output, final boolean addBom,
+            ExecutorService executor, final Semaphore slots) throws InterruptedException {
+
+        slots.acquire();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processFile(input, output, addBom);
+                    }
+                    finally {
+                        slots.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Hand a file to the pipeline, unless an incremental conversion finds it did
+     * not change since the last run
+     * @param input
+     * @param output
+     * @param pipeline
+     * @throws InterruptedException
+     */
+    private void pipelineFile(File input, File output, Pipeline pipeline) throws InterruptedException {
+        Manifest.Entry entry = syncEntry(input, output);
+
+        if (entry == UNCHANGED) {
+            progress.fileDone(input, input.length());
+            return;
+        }
+
+        Deduplicator run = dedup;
+        Deduplicator.Original original = null;
+
+        if (run != null) {
+            original = run.claim(input, output, entry);
+            if (original == null) return;
+        }
+
+        pipeline.submit(input, output, entry, original);
+    }
+
+    /**
+     * Produce the outputs of the duplicates found during a conversion, once all
+     * the files they are copies of have been converted
+     * @param run
+     * @param addBom
+     */
+    private void finishDuplicates(Deduplicator run, boolean addBom) {
+        StreamTranscoder transcoder = borrowTranscoder();
+
+        try {
+            for (Deduplicator.Duplicate duplicate : run.duplicates()) {
+                if (progress.isCancelled()) return;
+
+                transcoder.fileStarted(duplicate.input, duplicate.input.length());
+
+                try {
+                    // a hash collision, or a file whose original could not be converted
+                    if (!linkDuplicate(run, duplicate)) {
+                        finishFile(duplicate.entry, convertFile(duplicate.input, duplicate.output, addBom, duplicate.entry, transcoder));
+                    }
+                }
+                finally {
+                    transcoder.fileDone();
+                }
+            }
+        }
+        finally {
+            returnTranscoder(transcoder);
+        }
+    }
+
+    /**
+     * @param run
+     * @param duplicate
+     * @return false if the duplicate must be converted after all
+     */
+    private boolean linkDuplicate(Deduplicator run, Deduplicator.Duplicate duplicate) {
+        Deduplicator.Original original = duplicate.original;
+        File input  = duplicate.input;
+        File output = duplicate.output;
+
+        if (!original.isConverted()) return false;
+
+        try {
+            if (!run.sameContents(original.input, input)) return false;
+        }
+        catch (IOException ex) {
+            // convertFile will tell what's wrong
+            return false;
+        }
+
+        ErrorCode errorCode = filePathVerifier(input, output);
+        if (!errorCode.equals(ErrorCode.OK)) {
+            finishFile(duplicate.entry, errorCode);
+            return true;
+        }
+
+        String charset = original.entry.charset;
+        long   length  = input.length();
+
+        try {
+            DedupMode how = run.link(original.output, output);
+
+            logMessage(input, "Encoding of file " + input + " appears to be " + charsetForName(charset).displayName() +
+                    " (same contents as " + original.input + ", output " + (how.equals(DedupMode.COPY) ? "copied" :
+                    how.equals(DedupMode.HARDLINK) ? "hard-linked" : "reflinked") + ").");
+        }
+        catch (IOException ex) {
+            output.delete();
+            Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
+            finishFile(duplicate.entry, ErrorCode.OK);
+            return true;
+        }
+
+        if (duplicate.entry != null) duplicate.entry.charset = charset;
+
+        statistics.fileConverted(charset, length);
+        statistics.duplicateFile(length, original.getNanos());
+
+        finishFile(duplicate.entry, ErrorCode.OK);
+        return true;
+    }
+
+    /**
+     * Use virtual threads when the JVM has them (Java 21 onwards), waiting on slow
+     * storage then costs next to nothing; otherwise fall back to platform threads,
+     * which the open files semaphore keeps to a reasonable number
+     * @return
+     */
+    private static ExecutorService newThreadPerFileExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) break;
+            }
+            catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
     public String getErrorLog() {
-        return errorLog;
+        return getBufferedLog(ConversionEvent.Type.ERROR);
     }
 
     public String getLog() {
-        return log;
+        return getBufferedLog(ConversionEvent.Type.MESSAGE);
     }
 
     public String getWarningLog() {
-        return warningLog;
+        return getBufferedLog(ConversionEvent.Type.WARNING);
+    }
+
+    private String getBufferedLog(ConversionEvent.Type type) {
+        BufferSink buffer = logBuffer;
+        return buffer != null ? buffer.getText(type) : "";
     }
     
     public ArrayList<WarningCode> getWarning() {
         return warning;
     }
 
-    private void logError(String s) {
-        errorLog += "Error: " + s + System.getProperty("line.separator");
+    void addWarning(WarningCode code) {
+        synchronized (warning) {
+            warning.add(code);
+        }
+    }
+
+    void clearWarnings() {
+        synchronized (warning) {
+            warning.clear();
+        }
+    }
+
+    void logError(File file, String s) {
+        fireEvent(new ConversionEvent(ConversionEvent.Type.ERROR, file, s));
     }
 
-    private void logWarning(String s) {
-        warningLog += "Warning: " + s + System.getProperty("line.separator");
+    void logWarning(File file, String s) {
+        fireEvent(new ConversionEvent(ConversionEvent.Type.WARNING, file, s));
     }
     
-    private void logMessage(String s) {
-        log += s + System.getProperty("line.separator");
-    }    
+    void logMessage(File file, String s) {
+        fireEvent(new ConversionEvent(ConversionEvent.Type.MESSAGE, file, s));
+    }
+
+    private void fireEvent(ConversionEvent event) {
+        BufferSink buffer = logBuffer;
+
+        if (buffer != null) buffer.accept(event);
+
+        for (EventSink sink : sinks) sink.accept(event);
+    }
     
     /**
      * This method verifies that all parameters for a directory conversion are correct
@@ -111,27 +1022,33 @@ public class Converter {
     public ErrorCode dirPathVerifier(File inputDir, File outputDir) {
         // see if input dir exists and is readable
         if (!inputDir.exists() || !inputDir.canRead()) {
-            logError("input directory \"" + inputDir + "\" does not exist or is not readable.");
+            logError(inputDir, "input directory \"" + inputDir + "\" does not exist or is not readable.");
             return ErrorCode.INVALID_INPUT_DIR;
         }
 
         // see if output dir exists and is writeable
         if (!outputDir.exists() || !outputDir.canWrite()) {
-            logError("output directory \"" + outputDir + "\" does not exist or is not writeable.");
+            logError(outputDir, "output directory \"" + outputDir + "\" does not exist or is not writeable.");
             return ErrorCode.INVALID_OUTPUT_DIR;
         }
 
-        // output directory must be empty
-        if (outputDir.list().length > 0) {
-            logError("output directory \"" + outputDir + "\" is not empty, the output directory MUST be empty.");
-            return ErrorCode.NON_EMPTY_OUTPUT_DIR;
-        }
+        try {
+            // output directory must be empty, unless only what changed is to be converted
+            if (!incremental && !TreeWalker.isEmpty(outputDir)) {
+                logError(outputDir, "output directory \"" + outputDir + "\" is not empty, the output directory MUST be empty.");
+                return ErrorCode.NON_EMPTY_OUTPUT_DIR;
+            }
 
-        // issue a warning if directory is empty (this is not an error since
-        // it can happen if the program is performing a recursive conversion)
-        if (inputDir.list().length == 0) {
-            logWarning("input directory \"" + inputDir + "\" is empty, skipping it.");
-            warning.add(WarningCode.EMPTY_INPUT_DIR);
+            // issue a warning if directory is empty (this is not an error since
+            // it can happen if the program is performing a recursive conversion)
+            if (TreeWalker.isEmpty(inputDir)) {
+                logWarning(inputDir, "input directory \"" + inputDir + "\" is empty, skipping it.");
+                addWarning(WarningCode.EMPTY_INPUT_DIR);
+            }
+        }
+        catch (IOException ex) {
+            logError(inputDir, "could not read directory " + inputDir + ": " + ex.getMessage());
+            return ErrorCode.INVALID_INPUT_DIR;
         }
             
         return ErrorCode.OK;
@@ -146,26 +1063,26 @@ public class Converter {
     public ErrorCode filePathVerifier(File inputFile, File outputFile) {        
         // see if input file exists and is readable
         if (!inputFile.exists() || !inputFile.canRead()) {
-            logError("input file " + inputFile + " does not exist or is not readable.");
+            logError(inputFile, "input file " + inputFile + " does not exist or is not readable.");
             return ErrorCode.INVALID_INPUT_FILE;
         }
 
         // see if output file already exists
         if (outputFile.exists()) {
-            logError("output file " + outputFile + " already exists.");
+            logError(outputFile, "output file " + outputFile + " already exists.");
             return ErrorCode.OUTPUT_FILE_EXISTS;
         }
 
         // see if directory that is to contain output file exists and is writeable
         if (!outputFile.getParentFile().isDirectory() || !outputFile.getParentFile().canWrite()) {
-            logError("output directory " + outputFile.getParentFile() + " does not exist or is not writeable.");
+            logError(outputFile.getParentFile(), "output directory " + outputFile.getParentFile() + " does not exist or is not writeable.");
             return ErrorCode.INVALID_OUTPUT_DIR;
         }
 
         try {
             // see if output file can be created
             if (!outputFile.createNewFile()) {
-                logError("output file " + outputFile + " could not be created.");
+                logError(outputFile, "output file " + outputFile + " could not be created.");
                 return ErrorCode.INVALID_OUTPUT_FILE;
             }
             outputFile.delete();
@@ -178,6 +1095,33 @@ public class Converter {
     }
 
     public ErrorCode convertFile(File inputFile, File outputFile, boolean addBom) {
+        long length = inputFile.length();
+
+        progress.start(1, length);
+
+        StreamTranscoder transcoder = borrowTranscoder();
+        transcoder.fileStarted(inputFile, length);
+
+        try {
+            return convertFile(inputFile, outputFile, addBom, null, transcoder);
+        }
+        finally {
+            transcoder.fileDone();
+            returnTranscoder(transcoder);
+            progress.notifyListener();
+        }
+    }
+
+    /**
+     * @param inputFile
+     * @param outputFile
+     * @param addBom
+     * @param entry if not null, the name of the source charset is recorded in it
+     * once the file has been converted successfully
+     * @param transcoder the transcoder lent for the file, see StreamTranscoder.fileStarted
+     * @return
+     */
+    ErrorCode convertFile(File inputFile, File outputFile, boolean addBom, Manifest.Entry entry, StreamTranscoder transcoder) {
 
         ErrorCode errorCode;
         
@@ -185,119 +1129,346 @@ public class Converter {
         errorCode = filePathVerifier(inputFile, outputFile);
         if (!errorCode.equals(ErrorCode.OK)) return errorCode;
 
-        try {        
-            // build a BufferedInputStream to read file
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(inputFile));
+        if (progress.isCancelled()) return ErrorCode.CANCELLED;
 
-            // detect encoding
-            CharsetDetector detector = new CharsetDetector();
-            detector.setText(bis);
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            FileChannel in = fis.getChannel();
 
-            Charset sourceCharset = null;
+            // get file length so we can check a few things
+            long length = inputFile.length();
 
-            try {
-                if (detector.detect() == null) {
-                    logWarning("unable to detect source file encoding, skipping " + inputFile);
-                    warning.add(WarningCode.ENCODING_NOT_DETECTED);
+            // large files are read through memory mappings rather than copied into the heap
+            boolean mapped = length >= mappingThreshold;
+
+            // files that are already ASCII or UTF-8 are copied as they are, without
+            // going through the detector nor the decoder (nor the JVM heap)
+            if (fastPath && length > 0) {
+                long start = System.nanoTime();
+                Charset charset = mapped ? transcoder.sniffUtf8Mapped(in) : transcoder.sniffUtf8(in);
+                statistics.addDetectNanos(System.nanoTime() - start);
+
+                if (charset != null) {
+                    logMessage(inputFile, "Encoding of file " + inputFile + " appears to be " + charset.displayName() + ".");
+
+                    long bytesRead;
+                    try (FileOutputStream out = new FileOutputStream(outputFile)) {
+                        bytesRead = transcoder.copy(in, out.getChannel(), addBom);
+                    }
+
+                    if (bytesRead < length) {
+                        logError(inputFile, "could not completely read file " + inputFile.getName());
+                        outputFile.delete();
+                        return ErrorCode.INCOMPLETE_FILE_READ;
+                    }
+
+                    if (entry != null) entry.charset = charset.name();
+
+                    statistics.fileConverted(charset.name(), bytesRead);
+                    statistics.fastPathFile(bytesRead, System.nanoTime() - start);
                     return ErrorCode.OK;
                 }
-
-                sourceCharset = Charset.forName(detector.detect().getName());
-            }
-            catch (UnsupportedCharsetException ex) {
-                logWarning("\"" + inputFile + "\" uses an unsupported encoding, skipping.");
-                warning.add(WarningCode.ENCODING_NOT_SUPPORTED);
-                return ErrorCode.OK;
             }
 
-            logMessage("Encoding of file " + inputFile + " appears to be " + sourceCharset.displayName() + ".");
+            // detect encoding
+            Charset sourceCharset = detectCharset(inputFile, transcoder, transcoder.readHead(in, DETECTION_SAMPLE_SIZE), length, entry);
 
-            // get file length so we can check a few things and create a
-            // byte array large enough to accomodate its content
-            long length = inputFile.length();
+            if (sourceCharset == null) return ErrorCode.OK;
 
             // file is empty
             if (length == 0) {
-                logWarning("file " + inputFile.getName() + " is empty, skipping it.");
+                logWarning(inputFile, "file " + inputFile.getName() + " is empty, skipping it.");
                 return ErrorCode.FILE_IS_EMPTY;
             }            
             
-            // file is too large
-            if (length > Integer.MAX_VALUE) {
-                logError("file " + inputFile.getName() + " is too large.");
-                return ErrorCode.FILE_TOO_LARGE;
-            }
-            
-            // Create the byte array to hold the data
-            byte[] bytes = new byte[(int)length];
+            long bytesRead;
+            OutputStream out = new FileOutputStream(outputFile);
 
-            // reset inputstream
-            bis.reset();
+            try {
+                // more threads than processors would only add the cost of putting chunks together
+                int chunkThreads = Math.min(threads, Runtime.getRuntime().availableProcessors());
 
-            // Read in the bytes
-            int offset = 0;
-            int numRead = 0;
-            while (offset < bytes.length && (numRead=bis.read(bytes, offset, bytes.length-offset)) >= 0) {
-                offset += numRead;
+                if (chunkThreads > 1 && length >= ParallelTranscoder.MIN_SIZE && ParallelTranscoder.canSplit(sourceCharset)) {
+                    bytesRead = parallel.transcode(this, in, out, transcoder, sourceCharset, addBom, chunkThreads);
+                }
+                else if (mapped) {
+                    bytesRead = transcoder.transcodeMapped(in, out, sourceCharset, addBom);
+                }
+                else {
+                    in.position(0);
+                    bytesRead = transcoder.transcode(in, out, sourceCharset, addBom);
+                }
+            }
+            finally {
+                // flush and close output stream
+                out.close();
             }
 
             // make sure all the bytes have been read in
-            if (offset < bytes.length) {
-                logError("could not completely read file " + inputFile.getName());
+            if (bytesRead < length) {
+                logError(inputFile, "could not completely read file " + inputFile.getName());
+                outputFile.delete();
                 return ErrorCode.INCOMPLETE_FILE_READ;
             }
 
-            // Close the input stream
-            bis.close();
+            if (entry != null) entry.charset = sourceCharset.name();
+
+            statistics.fileConverted(sourceCharset.name(), bytesRead);
+        }
+        catch (FileNotFoundException ex) {
+            Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (InterruptedIOException ex) {
+            // the conversion was cancelled
+            outputFile.delete();
+            return ErrorCode.CANCELLED;
+        }
+        catch (IOException ex) {
+            // don't leave a half-converted file behind
+            outputFile.delete();
+            Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (Exception ex) {
+            outputFile.delete();
+            Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        
+        return ErrorCode.OK;
+    }
+
+    /**
+     * Convert a stream which can only be read once, from start to end (e.g. standard
+     * input). The encoding is detected from its first DETECTION_SAMPLE_SIZE bytes,
+     * which are then converted together with the rest of the stream as it is read,
+     * so memory use does not depend on how long the stream is.
+     * @param in
+     * @param out where the stream is written in UTF-8; it is flushed but not closed
+     * @param inputFile the file in is reading, for -hint patterns and the log;
+     * null if there is none (e.g. standard input)
+     * @param addBom
+     * @return OK, FILE_IS_EMPTY, INVALID_INPUT_FILE if the encoding could not be
+     * detected (nothing was written), CANCELLED or INCOMPLETE_FILE_READ if the
+     * conversion stopped halfway
+     */
+    public ErrorCode convertStream(InputStream in, OutputStream out, File inputFile, boolean addBom) {
+        String name = inputFile != null ? inputFile.toString() : STANDARD_INPUT;
+
+        progress.start(1, 0);
+
+        StreamTranscoder transcoder = borrowTranscoder();
+        transcoder.fileStarted(inputFile, 0);
+
+        try {
+            ReadableByteChannel channel = Channels.newChannel(in);
+            byte[] head = transcoder.readHead(channel, DETECTION_SAMPLE_SIZE);
+
+            if (head.length == 0) {
+                logWarning(inputFile, name + " is empty.");
+                return ErrorCode.FILE_IS_EMPTY;
+            }
+
+            // the length is only known if the stream ended within the head
+            long length = head.length < DETECTION_SAMPLE_SIZE ? head.length : -1;
+
+            Charset sourceCharset = detectCharset(inputFile, transcoder, head, length, null);
+            if (sourceCharset == null) return ErrorCode.INVALID_INPUT_FILE;
+
+            long bytesRead = transcoder.transcode(head, channel, out, sourceCharset, addBom);
+            out.flush();
+
+            statistics.fileConverted(sourceCharset.name(), bytesRead);
+        }
+        catch (InterruptedIOException ex) {
+            // the conversion was cancelled
+            return ErrorCode.CANCELLED;
+        }
+        catch (IOException ex) {
+            // e.g. whoever was reading the output went away
+            logError(inputFile, "conversion of " + name + " stopped halfway: " + ex.getMessage());
+            return ErrorCode.INCOMPLETE_FILE_READ;
+        }
+        finally {
+            transcoder.fileDone();
+            returnTranscoder(transcoder);
+            progress.notifyListener();
+        }
+
+        return ErrorCode.OK;
+    }
+
+    /**
+     * @param file
+     * @return true if the file is named like an archive convertArchive can convert
+     */
+    public static boolean isArchive(File file) {
+        return ArchiveConverter.formatOf(file) != null;
+    }
+
+    /**
+     * Convert the text files inside a ZIP, TAR or gzipped TAR archive, writing an
+     * archive of the same kind; see ArchiveConverter
+     * @param inputFile
+     * @param outputFile
+     * @param addBom
+     * @return
+     */
+    public ErrorCode convertArchive(File inputFile, File outputFile, boolean addBom) {
+        if (!isArchive(inputFile)) {
+            logError(inputFile, inputFile + " is not a ZIP or TAR archive.");
+            return ErrorCode.INVALID_INPUT_FILE;
+        }
 
-            // create a decoder
-            CharsetDecoder decoder = sourceCharset.newDecoder();
+        ErrorCode errorCode = filePathVerifier(inputFile, outputFile);
+        if (!errorCode.equals(ErrorCode.OK)) return errorCode;
 
-            // create a bytestream from the bytes read above and decode it
-            CharBuffer internalCbuf = decoder.decode(ByteBuffer.wrap(bytes));
+        // the entries, not the (compressed) archive, go through the transcoder
+        long length = ArchiveConverter.contentLength(inputFile);
 
-            // since the conversion mechanism apparently adds null characters at the end of the array,
-            // I had to add a bit of messy code to remove trailing nulls, here goes:
+        progress.start(1, length);
 
-            // first convert the bytestream into an ArrayList
-            ArrayList<Character> charArrayList = new ArrayList<Character>();
+        StreamTranscoder transcoder = borrowTranscoder();
+        transcoder.fileStarted(inputFile, length);
 
-            // read the array into the arraylist
-            for (char c : internalCbuf.array()) charArrayList.add(c);
+        try {
+            new ArchiveConverter(this, transcoder, statistics, inputFile, addBom).convert(outputFile);
+        }
+        catch (InterruptedIOException ex) {
+            // the conversion was cancelled
+            outputFile.delete();
+            return ErrorCode.CANCELLED;
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            // corrupt archive, or entry names which are not UTF-8
+            logError(inputFile, "could not convert archive " + inputFile + ": " + ex.getMessage());
+            outputFile.delete();
+            return ErrorCode.INVALID_INPUT_FILE;
+        }
+        finally {
+            transcoder.fileDone();
+            returnTranscoder(transcoder);
+            progress.notifyListener();
+        }
 
-            // if first character is the byte-order-mark, strip it (we'll add it back later)
-            if (charArrayList.get(0).equals('\ufeff')) charArrayList.remove(0);
+        return ErrorCode.OK;
+    }
 
-            // now starting at the end of the ArrayList, work your way backwards and remove
-            // all null characters you encounter until you find a non-null one
-            while (charArrayList.get(charArrayList.size()-1) == 0)
-                charArrayList.remove(charArrayList.size()-1);
+    /**
+     * Run the detector chain on the beginning of a file, unless the detection cache
+     * remembers what it said last time
+     * @param inputFile null for standard input
+     * @param transcoder the transcoder converting the file, the detectors use its buffers
+     * @param head at most the first DETECTION_SAMPLE_SIZE bytes of the file
+     * @param length length of the whole file, -1 if not known
+     * @param entry as given to convertFile, its hash (if any) is part of the cache key;
+     * it is marked as skipped when null is returned
+     * @return the charset of the file, or null if it could not be detected or is
+     * not supported (a warning has been logged)
+     */
+    Charset detectCharset(File inputFile, StreamTranscoder transcoder, byte[] head, long length, Manifest.Entry entry) {
+        Charset sourceCharset;
+        String  name = inputFile != null ? inputFile.toString() : STANDARD_INPUT;
 
-            // create an OutPutStream
-            FileOutputStream fos = new FileOutputStream(outputFile);
-            Writer out = new OutputStreamWriter(fos, "UTF8");
+        try {
+            long start = System.nanoTime();
+            Detection detection = detectCached(inputFile, transcoder, head, length, entry != null && entry.hashed ? entry.hash : 0);
+            statistics.addDetectNanos(System.nanoTime() - start);
 
-            // write BOM
-            if (addBom) {
-                out.write('\ufeff');
+            if (detection == null) {
+                logWarning(inputFile, "unable to detect source file encoding, skipping " + name);
+                addWarning(WarningCode.ENCODING_NOT_DETECTED);
+                if (entry != null) entry.skipped = true;
+                return null;
             }
 
-            // write all chars in the array to output stream
-            for (char c : charArrayList) out.write(c);
+            sourceCharset = charsetForName(detection.getCharsetName());
+        }
+        catch (IllegalArgumentException ex) {
+            // unsupported or illegal charset name
+            logWarning(inputFile, "\"" + name + "\" uses an unsupported encoding, skipping.");
+            addWarning(WarningCode.ENCODING_NOT_SUPPORTED);
+            if (entry != null) entry.skipped = true;
+            return null;
+        }
+
+        logMessage(inputFile, "Encoding of " + (inputFile != null ? "file " + inputFile : name) +
+                " appears to be " + sourceCharset.displayName() + ".");
+        return sourceCharset;
+    }
+
+    /**
+     * Same as detectCharset, but without logging anything nor looking at the
+     * detection cache, for files which are not on disk (e.g. archive entries)
+     * @param inputFile
+     * @param transcoder
+     * @param head
+     * @param length
+     * @return null if the encoding could not be detected or is not supported
+     */
+    Charset detectQuietly(File inputFile, StreamTranscoder transcoder, byte[] head, long length) {
+        long start = System.nanoTime();
+        Detection detection = detectors.detect(new DetectionSample(inputFile, head, length, transcoder), statistics);
+        statistics.addDetectNanos(System.nanoTime() - start);
 
-            // flush and close output stream
-            out.close();
+        if (detection == null) return null;
+
+        try {
+            return charsetForName(detection.getCharsetName());
         }
-        catch (FileNotFoundException ex) {
-            Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
+        catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private Detection detectCached(File inputFile, StreamTranscoder transcoder, byte[] head, long length, long contentHash) {
+        DetectionCache cache = detectionCache;
+
+        if (cache == null || inputFile == null) return detectors.detect(new DetectionSample(inputFile, head, length, transcoder), statistics);
+
+        Detection detection = null;
+        String configuration = detectors.getConfiguration();
+
+        try {
+            long start = System.nanoTime();
+            detection = cache.lookup(inputFile, contentHash, configuration);
+            statistics.detectorRun("cache", System.nanoTime() - start);
         }
         catch (IOException ex) {
             Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
         }
-        catch (Exception ex) {
+
+        if (detection != null) {
+            statistics.detectorHit("cache");
+            return detection != DetectionCache.UNDETECTED ? detection : null;
+        }
+
+        detection = detectors.detect(new DetectionSample(inputFile, head, length, transcoder), statistics);
+
+        try {
+            cache.store(inputFile, contentHash, configuration, detection);
+        }
+        catch (IOException ex) {
             Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
         }
-        
-        return ErrorCode.OK;
+
+        return detection;
+    }
+
+    static Charset charsetForName(String name) {
+        Charset charset = CHARSETS.get(name);
+
+        if (charset == null) {
+            charset = Charset.forName(name);
+            CHARSETS.put(name, charset);
+        }
+
+        return charset;
+    }
+
+    StreamTranscoder borrowTranscoder() {
+        StreamTranscoder transcoder = transcoders.poll();
+        return transcoder != null ? transcoder : new StreamTranscoder(statistics, progress);
+    }
+
+    void returnTranscoder(StreamTranscoder transcoder) {
+        transcoders.offer(transcoder);
     }
 }
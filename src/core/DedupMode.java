@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+/**
+ * How convertDir produces the output of an input file which is byte-for-byte
+ * identical to one it already converted (see Converter.setDedupMode)
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public enum DedupMode {
+    /**
+     * copy the converted file
+     */
+    COPY,
+
+    /**
+     * hard-link the converted file, which takes no space at all but means that
+     * changing one of the outputs changes all of them; falls back to copying
+     * where links are not possible (e.g. across file systems)
+     */
+    HARDLINK,
+
+    /**
+     * clone the converted file (cp --reflink), which shares its blocks until either
+     * copy is changed; falls back to copying on file systems that cannot do it
+     */
+    REFLINK
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spots input files which are identical to one met earlier in the same
+ * conversion. Files are first grouped by size, so a file whose size is unique
+ * is never read; files of the same size are told apart by their ContentHash,
+ * and a match is confirmed by comparing the two files in full before the
+ * output of the first one is reused.
+ *
+ * Duplicates are only dealt with once all other files have been converted
+ * (see finish), so that nobody ever has to wait for the conversion of the file
+ * they are a copy of, whichever thread is doing it.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class Deduplicator {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final DedupMode mode;
+
+    // files converted (or being converted) so far, by size
+    private final ConcurrentHashMap<Long, List<Original>> originals = new ConcurrentHashMap<>();
+
+    private final ConcurrentLinkedQueue<Duplicate> duplicates = new ConcurrentLinkedQueue<>();
+
+    // only used by finish, on a single thread
+    private final ByteBuffer first  = ByteBuffer.allocate(StreamTranscoder.BUFFER_SIZE);
+    private final ByteBuffer second = ByteBuffer.allocate(StreamTranscoder.BUFFER_SIZE);
+
+    private boolean reflinkFailed;
+
+    Deduplicator(DedupMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return processor time used by the current thread so far, or wall-clock
+     * time if the JVM does not measure it
+     */
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Find out whether a file is a copy of one met before
+     * @param input
+     * @param output
+     * @param entry the file's manifest entry in an incremental conversion, or null
+     * @return the file, to be converted and then marked as done, or null if it is
+     * (most likely) a duplicate, in which case it is left for finish
+     */
+    Original claim(File input, File output, Manifest.Entry entry) {
+        long size = input.length();
+
+        List<Original> sameSize = originals.get(size);
+        if (sameSize == null) {
+            List<Original> newList = new ArrayList<>();
+            sameSize = originals.putIfAbsent(size, newList);
+            if (sameSize == null) sameSize = newList;
+        }
+
+        synchronized (sameSize) {
+            Original file = new Original(input, output, size, entry);
+
+            if (!sameSize.isEmpty() && size > 0) {
+                file.hash();
+
+                for (Original original : sameSize) {
+                    original.hash();
+
+                    if (original.hash == file.hash) {
+                        duplicates.add(new Duplicate(input, output, entry, original));
+                        return null;
+                    }
+                }
+            }
+
+            sameSize.add(file);
+            return file;
+        }
+    }
+
+    /**
+     * @return the duplicates found so far, once all conversions are over
+     */
+    Iterable<Duplicate> duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return true if both files have the same contents
+     * @throws IOException
+     */
+    boolean sameContents(File a, File b) throws IOException {
+        try (FileInputStream inA = new FileInputStream(a); FileInputStream inB = new FileInputStream(b)) {
+            FileChannel channelA = inA.getChannel();
+            FileChannel channelB = inB.getChannel();
+
+            if (channelA.size() != channelB.size()) return false;
+
+            while (true) {
+                first.clear();
+                second.clear();
+
+                int n = fill(channelA, first);
+                if (fill(channelB, second) != n) return false;
+                if (n <= 0) return true;
+
+                first.flip();
+                second.flip();
+                if (!first.equals(second)) return false;
+            }
+        }
+    }
+
+    private static int fill(FileChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) break;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Produce the output of a duplicate from the output of its original
+     * @param from
+     * @param to
+     * @return how it was done, which is not always the configured mode
+     * @throws IOException
+     */
+    DedupMode link(File from, File to) throws IOException {
+        if (mode.equals(DedupMode.HARDLINK)) {
+            try {
+                Files.createLink(to.toPath(), from.toPath());
+                return DedupMode.HARDLINK;
+            }
+            catch (IOException | UnsupportedOperationException ex) {
+                // e.g. the output is spread over several file systems, copying will do
+            }
+        }
+        else if (mode.equals(DedupMode.REFLINK) && !reflinkFailed) {
+            if (reflink(from, to)) return DedupMode.REFLINK;
+
+            // don't try again for every file
+            reflinkFailed = true;
+        }
+
+        Files.copy(from.toPath(), to.toPath());
+        return DedupMode.COPY;
+    }
+
+    private static boolean reflink(File from, File to) {
+        try {
+            Process cp = new ProcessBuilder("cp", "--reflink=always", from.getPath(), to.getPath())
+                    .redirectErrorStream(true).start();
+            cp.getInputStream().close();
+
+            if (cp.waitFor() == 0) return true;
+        }
+        catch (IOException ex) {
+            // no cp, e.g. on Windows
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        to.delete();
+        return false;
+    }
+
+    /**
+     * The first file with some contents, the one which is actually converted
+     */
+    static class Original {
+
+        final File input;
+        final File output;
+        final long size;
+
+        // where convertFile records the charset; the manifest entry in an incremental conversion
+        final Manifest.Entry entry;
+
+        private boolean hashed;
+        private long    hash;
+
+        private volatile ErrorCode errorCode;
+        private volatile long      nanos;
+
+        Original(File input, File output, long size, Manifest.Entry entry) {
+            this.input  = input;
+            this.output = output;
+            this.size   = size;
+            this.entry  = entry != null ? entry : new Manifest.Entry(input.getPath(), output.getPath(), size, 0, false, 0);
+
+            if (entry != null && entry.hashed) {
+                hashed = true;
+                hash   = entry.hash;
+            }
+        }
+
+        /**
+         * Compute the hash of the file, if not done yet; called with the size list locked
+         */
+        private void hash() {
+            if (hashed) return;
+
+            try (FileInputStream in = new FileInputStream(input)) {
+                hash = ContentHash.hash(in.getChannel(), ByteBuffer.allocate(StreamTranscoder.BUFFER_SIZE));
+            }
+            catch (IOException ex) {
+                Logger.getLogger(Deduplicator.class.getName()).log(Level.SEVERE, null, ex);
+
+                // matches nothing but another unreadable file, which the full comparison will tell apart
+                hash = 0;
+            }
+
+            hashed = true;
+        }
+
+        /**
+         * @param errorCode what convertFile returned
+         * @param nanos processor time the conversion took
+         */
+        void done(ErrorCode errorCode, long nanos) {
+            this.nanos     = nanos;
+            this.errorCode = errorCode;
+        }
+
+        /**
+         * @return true if the file was converted and its output can be reused
+         */
+        boolean isConverted() {
+            return ErrorCode.OK.equals(errorCode) && entry.charset != null && output.isFile();
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * A file which appears to be identical to an Original
+     */
+    static class Duplicate {
+
+        final File           input;
+        final File           output;
+        final Manifest.Entry entry;
+        final Original       original;
+
+        Duplicate(File input, File output, Manifest.Entry entry, Original original) {
+            this.input    = input;
+            this.output   = output;
+            this.entry    = entry;
+            this.original = original;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+/**
+ * What an EncodingDetector makes of a file
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public final class Detection {
+
+    private final String charsetName;
+    private final int    confidence;
+
+    /**
+     * @param charsetName a name Charset.forName understands
+     * @param confidence from 0 (wild guess) to 100 (certain), like ICU's
+     */
+    public Detection(String charsetName, int confidence) {
+        this.charsetName = charsetName;
+        this.confidence  = Math.max(0, Math.min(100, confidence));
+    }
+
+    public String getCharsetName() {
+        return charsetName;
+    }
+
+    public int getConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public String toString() {
+        return charsetName + " (" + confidence + ")";
+    }
+}
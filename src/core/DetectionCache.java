@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers the charset detected for each file from one run to the next, so
+ * that trees which are converted again and again only go through the detectors
+ * once. Files are known by their identity (device and inode where the file
+ * system has them, their absolute path otherwise) plus, when the conversion
+ * computes it anyway, a hash of their contents; an entry is only used if the
+ * file still has the size and modification time it had when it was detected.
+ * Keys also cover the configuration of the detector chain (see
+ * DetectorChain.getConfiguration): what was detected with other hints, another
+ * threshold or other detectors is not used, and ages out of the table.
+ *
+ * The cache is a file holding a hash table of fixed-size records which is
+ * memory-mapped as a whole, so a lookup touches a page or two of it and the
+ * operating system decides what stays in memory. The table never grows: an
+ * entry goes in the first free slot of a small window, or else replaces the
+ * entry of that window which was used the longest ago (counted in runs).
+ *
+ * Only one process can use a cache file at a time.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class DetectionCache implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    // a single mapping cannot be larger than 2 GB
+    public static final int MAX_CAPACITY = 1 << 25;
+
+    // answer for files none of the detectors could tell
+    static final Detection UNDETECTED = new Detection(null, 0);
+
+    private static final int MAGIC   = 0x41324443; // "A2DC"
+    private static final int VERSION = 2;
+
+    // magic, version, capacity, generation, number of charsets, then the charset names
+    private static final int HEADER_SIZE      = 4096;
+    private static final int CHARSETS_OFFSET  = 64;
+    private static final int CHARSET_NAME_MAX = 32;
+    private static final int MAX_CHARSETS     = (HEADER_SIZE - CHARSETS_OFFSET) / CHARSET_NAME_MAX;
+
+    // key, size, modification time, charset, confidence, generation it was last used in
+    private static final int RECORD_SIZE = 32;
+
+    // slots an entry can be in, starting from the one its key points to
+    private static final int WINDOW = 8;
+
+    private static final short NO_CHARSET = -1;
+
+    private final RandomAccessFile file;
+    private final FileLock         lock;
+    private final MappedByteBuffer table;
+    private final int              capacity;
+    private final int              generation;
+
+    private final List<String> charsets = new ArrayList<>();
+
+    private DetectionCache(RandomAccessFile file, FileLock lock, MappedByteBuffer table, int capacity, int generation) {
+        this.file       = file;
+        this.lock       = lock;
+        this.table      = table;
+        this.capacity   = capacity;
+        this.generation = generation;
+
+        int count = table.getInt(16);
+        for (int i = 0; i < count; i++) {
+            int offset = CHARSETS_OFFSET + i * CHARSET_NAME_MAX;
+            byte[] name = new byte[table.get(offset)];
+            for (int j = 0; j < name.length; j++) name[j] = table.get(offset + 1 + j);
+            charsets.add(new String(name, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Open a cache file, creating it if it does not exist or is not a cache
+     * @param cacheFile
+     * @param capacity number of entries of a new cache, rounded up to a power of two;
+     * an existing cache keeps its own
+     * @return
+     * @throws IOException if the file cannot be created or is being used by another process
+     */
+    public static DetectionCache open(File cacheFile, int capacity) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+
+        try {
+            FileChannel channel = file.getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) throw new IOException("detection cache " + cacheFile + " is in use by another process");
+
+            boolean valid = file.length() >= HEADER_SIZE
+                    && file.readInt() == MAGIC
+                    && file.readInt() == VERSION;
+
+            int slots = valid ? file.readInt() : 0;
+            int generation = valid ? file.readInt() + 1 : 1;
+
+            if (!valid || Integer.bitCount(slots) != 1 || slots > MAX_CAPACITY
+                    || file.length() != HEADER_SIZE + (long) slots * RECORD_SIZE) {
+                slots = Integer.highestOneBit(Math.max(WINDOW, Math.min(MAX_CAPACITY, capacity)) * 2 - 1);
+                generation = 1;
+
+                // the new file is sparse, blocks are only allocated as entries are written
+                file.setLength(0);
+                file.setLength(HEADER_SIZE + (long) slots * RECORD_SIZE);
+            }
+
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            table.putInt(0, MAGIC);
+            table.putInt(4, VERSION);
+            table.putInt(8, slots);
+            table.putInt(12, generation);
+
+            return new DetectionCache(file, lock, table, slots, generation);
+        }
+        catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param inputFile
+     * @param contentHash hash of the file's contents, or 0 if not known
+     * @param configuration of the detector chain
+     * @return what was detected last time, UNDETECTED if nothing was, or null if the
+     * file is not in the cache, changed since or was detected with another configuration
+     * @throws IOException
+     */
+    synchronized Detection lookup(File inputFile, long contentHash, String configuration) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(inputFile.toPath(), BasicFileAttributes.class);
+        long key = key(inputFile, attributes, contentHash, configuration);
+
+        int slot = find(key);
+        if (slot < 0) return null;
+
+        int offset = offset(slot);
+        if (table.getLong(offset + 8) != attributes.size()
+                || table.getLong(offset + 16) != attributes.lastModifiedTime().toMillis()) {
+            return null;
+        }
+
+        table.putInt(offset + 28, generation);
+
+        short charset = table.getShort(offset + 24);
+        return charset == NO_CHARSET ? UNDETECTED : new Detection(charsets.get(charset), table.get(offset + 26));
+    }
+
+    /**
+     * @param inputFile
+     * @param contentHash as given to lookup
+     * @param configuration as given to lookup
+     * @param detection null if no detector could tell
+     * @throws IOException
+     */
+    synchronized void store(File inputFile, long contentHash, String configuration, Detection detection) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(inputFile.toPath(), BasicFileAttributes.class);
+        long key = key(inputFile, attributes, contentHash, configuration);
+
+        short charset = NO_CHARSET;
+        if (detection != null) {
+            charset = charsetIndex(detection.getCharsetName());
+
+            // hundreds of charsets, not worth remembering
+            if (charset == NO_CHARSET) return;
+        }
+
+        int slot = find(key);
+        if (slot < 0) slot = freeSlot(key);
+
+        int offset = offset(slot);
+        table.putLong(offset, key);
+        table.putLong(offset + 8, attributes.size());
+        table.putLong(offset + 16, attributes.lastModifiedTime().toMillis());
+        table.putShort(offset + 24, charset);
+        table.put(offset + 26, (byte) (detection != null ? detection.getConfidence() : 0));
+        table.putInt(offset + 28, generation);
+    }
+
+    /**
+     * Write everything to disk and let other processes use the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            table.force();
+            lock.release();
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private int find(long key) {
+        int first = (int) key & (capacity - 1);
+
+        for (int i = 0; i < WINDOW; i++) {
+            int slot = (first + i) & (capacity - 1);
+            long stored = table.getLong(offset(slot));
+
+            if (stored == key) return slot;
+
+            // entries are never removed, so the key cannot be any further
+            if (stored == 0) return -1;
+        }
+
+        return -1;
+    }
+
+    private int freeSlot(long key) {
+        int first  = (int) key & (capacity - 1);
+        int oldest = first;
+
+        for (int i = 0; i < WINDOW; i++) {
+            int slot = (first + i) & (capacity - 1);
+            int offset = offset(slot);
+
+            if (table.getLong(offset) == 0) return slot;
+
+            if (table.getInt(offset + 28) - table.getInt(offset(oldest) + 28) < 0) oldest = slot;
+        }
+
+        return oldest;
+    }
+
+    private short charsetIndex(String name) {
+        int index = charsets.indexOf(name);
+        if (index >= 0) return (short) index;
+
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        if (charsets.size() == MAX_CHARSETS || bytes.length >= CHARSET_NAME_MAX) return NO_CHARSET;
+
+        int offset = CHARSETS_OFFSET + charsets.size() * CHARSET_NAME_MAX;
+        table.put(offset, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++) table.put(offset + 1 + i, bytes[i]);
+
+        charsets.add(name);
+        table.putInt(16, charsets.size());
+
+        return (short) (charsets.size() - 1);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * @return a 64-bit hash of the file's identity, contents hash and detector
+     * configuration, never 0
+     */
+    private static long key(File inputFile, BasicFileAttributes attributes, long contentHash, String configuration) {
+        Object fileKey = attributes.fileKey();
+
+        // no path contains a NUL, so the identity and the configuration cannot run into each other
+        String text = (fileKey != null ? fileKey.toString() : inputFile.getAbsolutePath()) + '\0' + configuration;
+
+        // FNV-1a, then mixed like ContentHash does
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= contentHash * 0x9e3779b185ebca87L;
+        hash ^= hash >>> 33;
+        hash *= 0xc2b2ae3d27d4eb4fL;
+        hash ^= hash >>> 29;
+
+        return hash != 0 ? hash : 1;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+
+/**
+ * The part of a file encoding detectors get to look at
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public final class DetectionSample {
+
+    private final File             file;
+    private final byte[]           head;
+    private final long             length;
+    private final StreamTranscoder transcoder;
+
+    DetectionSample(File file, byte[] head, long length, StreamTranscoder transcoder) {
+        this.file       = file;
+        this.head       = head;
+        this.length     = length;
+        this.transcoder = transcoder;
+    }
+
+    /**
+     * @return the file the sample was taken from, null if it is a stream (e.g. standard input)
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the first bytes of the file, not to be modified
+     */
+    public byte[] getHead() {
+        return head;
+    }
+
+    /**
+     * @return the length of the whole file, -1 if it is a stream which is
+     * longer than the head (its length is not known until it has all been read)
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the head is the whole file
+     */
+    public boolean isComplete() {
+        return head.length == length;
+    }
+
+    /**
+     * @return the transcoder the file is converted with, whose detector and
+     * validator the built-in detectors use rather than allocating their own
+     */
+    StreamTranscoder getTranscoder() {
+        return transcoder;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds out the charset of a file by asking a list of detectors in turn, the
+ * cheapest first: the first answer at least as confident as the threshold is
+ * taken, otherwise the most confident answer of all. The chain starts out as
+ * BomDetector, Utf8Detector, HintDetector, the detectors registered through
+ * ServiceLoader (see EncodingDetector) and IcuDetector.
+ *
+ * How often each detector runs, how long it takes and how often its answer
+ * is the one taken is counted in ConversionStatistics.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class DetectorChain {
+
+    public static final int DEFAULT_THRESHOLD = 90;
+
+    private final CopyOnWriteArrayList<EncodingDetector> detectors = new CopyOnWriteArrayList<>();
+
+    private final HintDetector hints = new HintDetector();
+
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    public DetectorChain() {
+        detectors.add(new BomDetector());
+        detectors.add(new Utf8Detector());
+        detectors.add(hints);
+
+        try {
+            for (EncodingDetector detector : ServiceLoader.load(EncodingDetector.class)) {
+                detectors.add(detector);
+            }
+        }
+        catch (ServiceConfigurationError ex) {
+            Logger.getLogger(DetectorChain.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        detectors.add(new IcuDetector());
+    }
+
+    /**
+     * @return the detectors in the order they are asked, changes to the list
+     * take effect from the next file on
+     */
+    public List<EncodingDetector> getDetectors() {
+        return detectors;
+    }
+
+    /**
+     * Add a detector right before the last one, i.e. before ICU unless the chain was rearranged
+     * @param detector
+     */
+    public synchronized void addDetector(EncodingDetector detector) {
+        detectors.add(Math.max(0, detectors.size() - 1), detector);
+    }
+
+    /**
+     * @return the user's hints, which are in the chain unless it was rearranged
+     */
+    public HintDetector getHints() {
+        return hints;
+    }
+
+    /**
+     * @param threshold an answer at least this confident (0-100) stops the chain
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return what decides the answers of the chain: its detectors in order, the
+     * hints and the threshold. DetectionCache keys its entries with it, so that
+     * files are detected again when any of these changes
+     */
+    String getConfiguration() {
+        StringBuilder configuration = new StringBuilder().append(threshold);
+
+        for (EncodingDetector detector : detectors) {
+            configuration.append(';').append(detector.getClass().getName());
+            if (detector instanceof HintDetector) configuration.append('[').append(detector).append(']');
+        }
+
+        return configuration.toString();
+    }
+
+    /**
+     * @param sample
+     * @param statistics
+     * @return the answer taken, or null if no detector could tell
+     */
+    Detection detect(DetectionSample sample, ConversionStatistics statistics) {
+        Detection best     = null;
+        String    bestName = null;
+
+        for (EncodingDetector detector : detectors) {
+            Detection detection = null;
+            long start = System.nanoTime();
+
+            try {
+                detection = detector.detect(sample);
+            }
+            catch (RuntimeException ex) {
+                // a broken detector must not stop the conversion, the others may know
+                Logger.getLogger(DetectorChain.class.getName()).log(Level.SEVERE, null, ex);
+            }
+
+            statistics.detectorRun(detector.getName(), System.nanoTime() - start);
+
+            if (detection != null && (best == null || detection.getConfidence() > best.getConfidence())) {
+                best     = detection;
+                bestName = detector.getName();
+            }
+
+            if (best != null && best.getConfidence() >= threshold) break;
+        }
+
+        if (best != null) statistics.detectorHit(bestName);
+
+        return best;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CoderResult;
+
+/**
+ * Converts text in a given charset straight to UTF-8 bytes, without going
+ * through chars the way a CharsetDecoder and a CharsetEncoder would.
+ * Used like a CharsetDecoder: bytes which cannot be converted yet (e.g. the
+ * first half of a character at the end of a buffer) are left in the input.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+interface DirectTranscoder {
+
+    /**
+     * Get ready for a new file
+     */
+    void reset();
+
+    /**
+     * @param in
+     * @param out a buffer backed by an array
+     * @param endOfInput true if no more input follows what is in the buffer
+     * @return CoderResult.UNDERFLOW when the input is used up, CoderResult.OVERFLOW
+     * when the output is full, or the error found at the input's position
+     */
+    CoderResult transcode(ByteBuffer in, ByteBuffer out, boolean endOfInput);
+
+    /**
+     * @param charset
+     * @return a transcoder for the charset, null if there is none
+     */
+    static DirectTranscoder forCharset(Charset charset) {
+        DirectTranscoder transcoder = Utf16Transcoder.forCharset(charset);
+        return transcoder != null ? transcoder : SingleByteTranscoder.forCharset(charset);
+    }
+}
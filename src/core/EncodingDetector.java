@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+/**
+ * One of the tiers of a DetectorChain: tells the charset of a file from its
+ * first few kilobytes, if it can. Detectors are shared by all conversion
+ * threads, so they must be thread-safe.
+ *
+ * Other detectors can be added to the chain of every Converter by listing
+ * them in a META-INF/services/core.EncodingDetector file on the class path,
+ * see java.util.ServiceLoader; they run after the built-in tiers and before
+ * ICU, which is the last resort.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public interface EncodingDetector {
+
+    /**
+     * @return a short name, used in the statistics
+     */
+    String getName();
+
+    /**
+     * @param sample
+     * @return the charset of the file and how sure the detector is about it,
+     * or null if it cannot tell
+     */
+    Detection detect(DetectionSample sample);
+}
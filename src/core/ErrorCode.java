@@ -30,5 +30,7 @@ public enum ErrorCode {
     INCOMPLETE_FILE_READ,
     FILE_TOO_LARGE,
     FILE_IS_EMPTY,
+    INVALID_MANIFEST,
+    CANCELLED,
     OK,
 }
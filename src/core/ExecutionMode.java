@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+/**
+ * How convertDir spreads files over threads
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public enum ExecutionMode {
+    /**
+     * a fixed number of workers (see Converter.setThreads), best when
+     * conversion is CPU-bound
+     */
+    WORKER_POOL,
+
+    /**
+     * one thread per file (a virtual thread on JVMs that have them), with at most
+     * Converter.getMaxOpenFiles() files open at once, for slow storage without
+     * having to pick a number of workers: with 2 ms added to each file system
+     * request, 1000 files of 4 KB took 11 s this way, against 10 s with 16 or
+     * 64 workers and 67 s with one (Java 21, see ConvertDirBenchmark). It is
+     * not the default because on a local disk it was no faster than a single
+     * worker, and it holds up to 256 files open.
+     */
+    THREAD_PER_FILE,
+
+    /**
+     * files go through a pipeline of stages (see PipelineStage), each with its own
+     * threads, so that reading, detecting, transcoding and writing overlap
+     */
+    PIPELINE
+}
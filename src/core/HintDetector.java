@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Charsets the user knows files to be in, by file name: a hint such as
+ * "*.nfo" = "IBM437" applies to every file whose name matches the glob.
+ * A glob containing a slash is matched against the whole path instead,
+ * e.g. "**&#47;legacy/*.txt". The first matching hint wins.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class HintDetector implements EncodingDetector {
+
+    private final CopyOnWriteArrayList<Hint> hints = new CopyOnWriteArrayList<>();
+
+    @Override
+    public String getName() {
+        return "hints";
+    }
+
+    /**
+     * @param glob see FileSystem.getPathMatcher
+     * @param charsetName
+     * @param confidence see Detection
+     */
+    public void addHint(String glob, String charsetName, int confidence) {
+        hints.add(new Hint(glob, new Detection(charsetName, confidence)));
+    }
+
+    public void clearHints() {
+        hints.clear();
+    }
+
+    public boolean isEmpty() {
+        return hints.isEmpty();
+    }
+
+    /**
+     * @return the hints in the order they are tried, e.g. for DetectorChain.getConfiguration
+     */
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder();
+
+        for (Hint hint : hints) {
+            if (description.length() > 0) description.append(',');
+            description.append(hint.glob).append('=').append(hint.detection.getCharsetName())
+                    .append(':').append(hint.detection.getConfidence());
+        }
+
+        return description.toString();
+    }
+
+    @Override
+    public Detection detect(DetectionSample sample) {
+        if (hints.isEmpty() || sample.getFile() == null) return null;
+
+        Path path = sample.getFile().toPath();
+        Path name = path.getFileName();
+
+        for (Hint hint : hints) {
+            if (hint.matcher.matches(hint.wholePath ? path : name)) return hint.detection;
+        }
+
+        return null;
+    }
+
+    private static class Hint {
+
+        private final String      glob;
+        private final PathMatcher matcher;
+        private final boolean     wholePath;
+        private final Detection   detection;
+
+        Hint(String glob, Detection detection) {
+            this.glob      = glob;
+            this.matcher   = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            this.wholePath = glob.indexOf('/') >= 0;
+            this.detection = detection;
+        }
+    }
+}
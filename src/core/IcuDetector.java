@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import com.ibm.icu.text.CharsetDetector;
+import com.ibm.icu.text.CharsetMatch;
+
+/**
+ * ICU's statistical detector, the slowest tier but the only one which can tell
+ * legacy charsets apart; it always comes last in the chain
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class IcuDetector implements EncodingDetector {
+
+    @Override
+    public String getName() {
+        return "icu";
+    }
+
+    @Override
+    public Detection detect(DetectionSample sample) {
+        // detectors are not thread-safe, each transcoder has its own
+        CharsetDetector detector = sample.getTranscoder().detector();
+        detector.setText(sample.getHead());
+
+        CharsetMatch match = detector.detect();
+        return match != null ? new Detection(match.getName(), match.getConfidence()) : null;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers what was converted in a directory, so that converting the same
+ * directory again only needs to deal with files which were added or changed.
+ * Entries are keyed by the path of the input file relative to the input directory.
+ *
+ * The manifest is saved in a compact binary format which is read and written
+ * sequentially through buffered streams, so that trees with millions of files
+ * don't take more than a few seconds.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class Manifest {
+
+    static final String FILE_NAME = ".any2utf8-manifest";
+
+    private static final int MAGIC   = 0x41325538; // "A2U8"
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    static class Entry {
+        final String inputPath;
+        final String outputPath;
+        final long   size;
+        final long   lastModified;
+        final boolean hashed;
+        final long   hash;
+
+        // null if the file was skipped, e.g. because its encoding was not detected
+        volatile String charset;
+
+        // true if the file was skipped on purpose rather than because something went
+        // wrong: only then is it left alone until it changes
+        volatile boolean skipped;
+
+        Entry(String inputPath, String outputPath, long size, long lastModified, boolean hashed, long hash) {
+            this.inputPath    = inputPath;
+            this.outputPath   = outputPath;
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.hashed       = hashed;
+            this.hash         = hash;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    Entry get(String inputPath) {
+        return entries.get(inputPath);
+    }
+
+    void put(Entry entry) {
+        entries.put(entry.inputPath, entry);
+    }
+
+    Entry remove(String inputPath) {
+        return entries.remove(inputPath);
+    }
+
+    Set<String> inputPaths() {
+        return entries.keySet();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param file
+     * @return the manifest saved in file, or an empty one if there is no such file
+     * @throws IOException if the file exists but is not a valid manifest
+     */
+    static Manifest load(File file) throws IOException {
+        Manifest manifest = new Manifest();
+
+        if (!file.exists()) return manifest;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a valid manifest.");
+            }
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String  inputPath    = in.readUTF();
+                String  outputPath   = in.readUTF();
+                long    size         = in.readLong();
+                long    lastModified = in.readLong();
+                boolean hashed       = in.readBoolean();
+                long    hash         = in.readLong();
+                String  charset      = in.readUTF();
+
+                Entry entry = new Entry(inputPath, outputPath, size, lastModified, hashed, hash);
+                entry.charset = charset.isEmpty() ? null : charset;
+                entry.skipped = entry.charset == null;
+                manifest.put(entry);
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Save the manifest, replacing the previous one only once the new one
+     * is completely written
+     * @param file
+     * @throws IOException
+     */
+    void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.inputPath);
+                out.writeUTF(entry.outputPath);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeBoolean(entry.hashed);
+                out.writeLong(entry.hash);
+                out.writeUTF(entry.charset != null ? entry.charset : "");
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Converts a large file on several threads: the file is cut into chunks at
+ * character boundaries, the chunks are converted at the same time and written
+ * out in order as they are done. Only charsets in which a character boundary
+ * can be found by looking at a few bytes qualify, see canSplit.
+ *
+ * There is one per Converter (and the converters made from it for
+ * ConversionServer), shared by all the files they convert at the same time:
+ * chunks of every file go to the same threads (one per processor) and no more
+ * than IN_FLIGHT of them are converted or waiting to be written at any time,
+ * however many large files are converted side by side.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class ParallelTranscoder {
+
+    static final long CHUNK_SIZE = 8L * 1024 * 1024;
+
+    // smaller files are not worth it
+    static final long MIN_SIZE = 4 * CHUNK_SIZE;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // a couple of chunks more than threads, so that no thread waits for a writer
+    private static final int IN_FLIGHT = THREADS + 2;
+
+    /**
+     * Where a chunk may end
+     */
+    private enum SplitRule {
+        // single-byte charsets
+        ANYWHERE,
+        // before a byte which is not a continuation byte
+        UTF8,
+        // at an even position, but not between the two halves of a surrogate pair
+        UTF16BE,
+        UTF16LE,
+        // after a byte below 0x80, every byte of a multibyte character (EUC) being above
+        AFTER_ASCII
+    }
+
+    // converts chunks; its threads go away when there has been nothing to do for a while
+    private final ThreadPoolExecutor executor;
+
+    // chunks converted or waiting to be written, over all files
+    private final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+
+    // buffers holding converted chunks until they are written out
+    private final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+
+    ParallelTranscoder() {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        // a Converter is never closed, its threads must not keep the JVM alive
+                        Thread thread = new Thread(task, "any2utf8-chunks");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param charset
+     * @return true if files in this charset can be cut into chunks which can be converted on their own;
+     * false for charsets which keep state (e.g. ISO-2022) or whose trail bytes can look like anything
+     * (e.g. Shift_JIS, Big5, GB18030)
+     */
+    static boolean canSplit(Charset charset) {
+        return splitRule(charset) != null;
+    }
+
+    private static SplitRule splitRule(Charset charset) {
+        switch (charset.name()) {
+            case "UTF-8":
+                return SplitRule.UTF8;
+            case "UTF-16BE":
+                return SplitRule.UTF16BE;
+            case "UTF-16LE":
+                return SplitRule.UTF16LE;
+            case "EUC-JP":
+            case "EUC-KR":
+            case "GB2312":
+            case "x-EUC-TW":
+                return SplitRule.AFTER_ASCII;
+            default:
+                return SingleByteTranscoder.forCharset(charset) != null ? SplitRule.ANYWHERE : null;
+        }
+    }
+
+    /**
+     * Same as StreamTranscoder.transcode, for a charset for which canSplit is true
+     * @param converter the chunks are converted with transcoders borrowed from it
+     * @param in
+     * @param out
+     * @param writer the transcoder putting the chunks together
+     * @param sourceCharset
+     * @param addBom
+     * @param threads at most this many chunks of the file are converted at the same time
+     * @return the number of bytes read from the file
+     * @throws IOException
+     */
+    long transcode(Converter converter, FileChannel in, OutputStream out,
+            StreamTranscoder writer, Charset sourceCharset, boolean addBom, int threads) throws IOException {
+
+        SplitRule rule = splitRule(sourceCharset);
+        long size = in.size();
+
+        int window = Math.min(threads + 2, IN_FLIGHT);
+
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+
+        // set when the file is given up on, so that chunks not started yet are skipped
+        AtomicBoolean abandoned = new AtomicBoolean();
+
+        writer.beginOutput(out, addBom);
+
+        try {
+            long position = 0;
+            while (position < size) {
+                long start = position;
+                long end   = size - position <= CHUNK_SIZE ? size : splitPoint(in, rule, position + CHUNK_SIZE, size);
+
+                if (pending.size() == window) write(writer, pending.poll());
+
+                // chunks of other files may hold all the slots: writing ours out frees some,
+                // and a writer only waits when it holds none, so writers never wait for each other
+                while (!inFlight.tryAcquire()) {
+                    if (!pending.isEmpty()) write(writer, pending.poll());
+                    else acquire();
+                }
+
+                pending.add(submit(converter, in, start, end, sourceCharset, abandoned));
+
+                position = end;
+            }
+
+            while (!pending.isEmpty()) write(writer, pending.poll());
+
+            return size;
+        }
+        finally {
+            writer.endOutput();
+
+            // left over when something went wrong
+            abandoned.set(true);
+            for (Future<Chunk> result : pending) abandon(result);
+        }
+    }
+
+    private Future<Chunk> submit(final Converter converter, final FileChannel in, final long start, final long end,
+            final Charset sourceCharset, final AtomicBoolean abandoned) {
+        return executor.submit(new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws IOException {
+                if (abandoned.get()) return null;
+
+                StreamTranscoder transcoder = converter.borrowTranscoder();
+                Chunk chunk = borrowChunk();
+                boolean converted = false;
+
+                try {
+                    chunk.length = end - start;
+                    transcoder.transcodeChunk(in, start, end - start, chunk, sourceCharset);
+                    converted = true;
+                    return chunk;
+                }
+                finally {
+                    converter.returnTranscoder(transcoder);
+                    if (!converted) recycle(chunk);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for a chunk which will not be written: its slot only goes back once
+     * the thread converting it is done with its buffer
+     * @param result
+     */
+    private void abandon(Future<Chunk> result) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    Chunk chunk = result.get();
+                    if (chunk != null) recycle(chunk);
+                    return;
+                }
+                catch (InterruptedException ex) {
+                    // no longer than it takes to convert one chunk
+                    interrupted = true;
+                }
+                catch (ExecutionException ex) {
+                    // its buffer went back when it failed
+                    return;
+                }
+            }
+        }
+        finally {
+            inFlight.release();
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            inFlight.acquire();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to convert chunks");
+        }
+    }
+
+    private void write(StreamTranscoder writer, Future<Chunk> result) throws IOException {
+        Chunk chunk = null;
+
+        try {
+            chunk = result.get();
+
+            writer.writeChunk(chunk.buffer(), chunk.size());
+            writer.count(chunk.length);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while converting chunks");
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+        finally {
+            if (chunk != null) recycle(chunk);
+            inFlight.release();
+        }
+    }
+
+    private Chunk borrowChunk() {
+        Chunk chunk = chunks.poll();
+        return chunk != null ? chunk : new Chunk();
+    }
+
+    private void recycle(Chunk chunk) {
+        chunk.reset();
+        chunks.offer(chunk);
+    }
+
+    /**
+     * @param in
+     * @param rule
+     * @param position where the chunk would end if it could end anywhere
+     * @param size
+     * @return the first position from there on where the chunk can end
+     * @throws IOException
+     */
+    private static long splitPoint(FileChannel in, SplitRule rule, long position, long size) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+        switch (rule) {
+            case ANYWHERE:
+                return position;
+
+            case UTF8:
+                // at most three continuation bytes in a row in valid UTF-8
+                read(in, bytes, position, 4);
+                for (int i = 0; i < bytes.limit(); i++) {
+                    if ((bytes.get(i) & 0xc0) != 0x80) return position + i;
+                }
+                return Math.min(size, position + bytes.limit());
+
+            case UTF16BE:
+            case UTF16LE:
+                // chunks start at even positions and are even in length
+                read(in, bytes, position, 2);
+                if (bytes.limit() < 2) return size;
+
+                int unit = rule == SplitRule.UTF16BE
+                        ? (bytes.get(0) & 0xff) << 8 | (bytes.get(1) & 0xff)
+                        : (bytes.get(1) & 0xff) << 8 | (bytes.get(0) & 0xff);
+
+                return Character.isLowSurrogate((char) unit) ? Math.min(size, position + 2) : position;
+
+            default:
+                // the byte before the split point must be ASCII
+                for (long from = position - 1; from < size; from += bytes.capacity()) {
+                    read(in, bytes, from, bytes.capacity());
+                    for (int i = 0; i < bytes.limit(); i++) {
+                        if (bytes.get(i) >= 0) return from + i + 1;
+                    }
+                }
+                return size;
+        }
+    }
+
+    private static void read(FileChannel in, ByteBuffer bytes, long position, int length) throws IOException {
+        bytes.clear().limit(length);
+
+        while (bytes.hasRemaining()) {
+            if (in.read(bytes, position + bytes.position()) < 0) break;
+        }
+
+        bytes.flip();
+    }
+
+    /**
+     * A converted chunk, kept in memory until it is its turn to be written out
+     */
+    private static class Chunk extends ByteArrayOutputStream {
+
+        // bytes of the input file it was converted from
+        private long length;
+
+        Chunk() {
+            super((int) CHUNK_SIZE);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
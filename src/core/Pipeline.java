@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts the files of a directory in stages (see PipelineStage), each with its
+ * own threads, so that the disk is read and written while the processors detect
+ * and convert. Stages are connected by bounded queues: a stage which gets ahead
+ * of the next one waits for room in the queue between them, so at most a few
+ * queues' worth of files are held in memory. Files larger than PREFETCH_LIMIT
+ * are not read in advance, the transcode stage converts them from disk to disk
+ * like Converter.convertFile does.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class Pipeline {
+
+    // files up to this size are read into memory by the read stage
+    static final int PREFETCH_LIMIT = 1024 * 1024;
+
+    // put in a queue once for every thread of the stage reading it when there are no more files
+    private static final Job END = new Job(null, null, null, null, 0);
+
+    private final Converter            converter;
+    private final ConversionStatistics statistics;
+    private final ProgressTracker      progress;
+    private final boolean              fastPath;
+    private final boolean              addBom;
+
+    private final Stage read;
+    private final Stage detect;
+    private final Stage transcode;
+    private final Stage write;
+
+    /**
+     * Start the threads of all stages
+     * @param converter
+     * @param statistics
+     * @param progress
+     * @param threads number of threads of each stage, by PipelineStage ordinal
+     * @param queueSize number of files which can wait for each stage
+     * @param fastPath
+     * @param addBom
+     */
+    Pipeline(Converter converter, ConversionStatistics statistics, ProgressTracker progress,
+            int[] threads, int queueSize, boolean fastPath, boolean addBom) {
+
+        this.converter  = converter;
+        this.statistics = statistics;
+        this.progress   = progress;
+        this.fastPath   = fastPath;
+        this.addBom     = addBom;
+
+        read      = new Stage(PipelineStage.READ, threads, queueSize);
+        detect    = new Stage(PipelineStage.DETECT, threads, queueSize);
+        transcode = new Stage(PipelineStage.TRANSCODE, threads, queueSize);
+        write     = new Stage(PipelineStage.WRITE, threads, queueSize);
+
+        Map<String, BlockingQueue<?>> queues = new LinkedHashMap<>();
+        for (Stage stage : new Stage[] {read, detect, transcode, write}) {
+            queues.put(stage.stage.queueName(), stage.queue);
+        }
+        statistics.setQueues(Collections.unmodifiableMap(queues));
+
+        // a stage is done once the one before it is, whichever queue it was handed files in
+        read.start(detect);
+        detect.start(transcode);
+        transcode.start(write);
+        write.start(null);
+    }
+
+    /**
+     * Hand a file to the read stage, waiting if its queue is full
+     * @param input
+     * @param output
+     * @param entry the file's manifest entry in an incremental conversion, or null
+     * @param original if not null, the file may have duplicates and is to be marked as done
+     * @throws InterruptedException
+     */
+    void submit(File input, File output, Manifest.Entry entry, Deduplicator.Original original) throws InterruptedException {
+        read.queue.put(new Job(input, output, entry, original, input.length()));
+        statistics.queueDepth(read.stage.queueName(), read.queue.size());
+    }
+
+    /**
+     * Wait until all the files submitted so far have gone through all stages and stop the threads
+     */
+    void finish() {
+        read.end();
+
+        for (Stage stage : new Stage[] {read, detect, transcode, write}) {
+            Converter.awaitTermination(stage.executor);
+        }
+
+        statistics.setQueues(Collections.<String, BlockingQueue<?>>emptyMap());
+    }
+
+    private void read(Job job) {
+        if (progress.isCancelled()) {
+            done(job, ErrorCode.CANCELLED);
+            return;
+        }
+
+        // large files are converted from disk to disk, there is nothing to read in advance
+        if (job.length > PREFETCH_LIMIT) {
+            transcode.put(job);
+            return;
+        }
+
+        ErrorCode errorCode = converter.filePathVerifier(job.input, job.output);
+        if (!errorCode.equals(ErrorCode.OK)) {
+            done(job, errorCode);
+            return;
+        }
+
+        long start = System.nanoTime();
+        byte[] bytes = new byte[(int) job.length];
+        int count = 0;
+
+        try (FileInputStream in = new FileInputStream(job.input)) {
+            int n;
+            while (count < bytes.length && (n = in.read(bytes, count, bytes.length - count)) >= 0) {
+                count += n;
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(Pipeline.class.getName()).log(Level.SEVERE, null, ex);
+            done(job, ErrorCode.OK);
+            return;
+        }
+
+        statistics.addReadNanos(System.nanoTime() - start);
+
+        if (count < bytes.length) {
+            converter.logError(job.input, "could not completely read file " + job.input.getName());
+            done(job, ErrorCode.INCOMPLETE_FILE_READ);
+            return;
+        }
+
+        job.bytes = bytes;
+        job.count = count;
+        detect.put(job);
+    }
+
+    private void detect(Job job, StreamTranscoder transcoder) {
+        if (progress.isCancelled()) {
+            done(job, ErrorCode.CANCELLED);
+            return;
+        }
+
+        // files that are already ASCII or UTF-8 are written out as they are
+        if (fastPath && job.count > 0) {
+            long start = System.nanoTime();
+            Charset charset = transcoder.sniffUtf8(ByteBuffer.wrap(job.bytes, 0, job.count));
+            long nanos = System.nanoTime() - start;
+            statistics.addDetectNanos(nanos);
+
+            if (charset != null) {
+                converter.logMessage(job.input, "Encoding of file " + job.input + " appears to be " + charset.displayName() + ".");
+
+                job.charset       = charset;
+                job.utf8          = true;
+                job.fastPathNanos = nanos;
+                write.put(job);
+                return;
+            }
+        }
+
+        byte[] head = job.count > Converter.DETECTION_SAMPLE_SIZE
+                ? Arrays.copyOf(job.bytes, Converter.DETECTION_SAMPLE_SIZE) : job.bytes;
+
+        Charset charset = converter.detectCharset(job.input, transcoder, head, job.count, job.record);
+        if (charset == null) {
+            done(job, ErrorCode.OK);
+            return;
+        }
+
+        if (job.count == 0) {
+            converter.logWarning(job.input, "file " + job.input.getName() + " is empty, skipping it.");
+            done(job, ErrorCode.FILE_IS_EMPTY);
+            return;
+        }
+
+        job.charset = charset;
+        transcode.put(job);
+    }
+
+    private void transcode(Job job, StreamTranscoder transcoder) {
+        if (job.bytes == null) {
+            transcoder.fileStarted(job.input, job.length);
+
+            try {
+                ErrorCode errorCode = converter.convertFile(job.input, job.output, addBom, job.record, transcoder);
+                if (job.original != null) {
+                    job.original.done(errorCode, job.cpuNanos + Deduplicator.cpuTime() - job.stageStart);
+                }
+
+                converter.finishFile(job.entry, errorCode);
+            }
+            finally {
+                transcoder.fileDone();
+            }
+            return;
+        }
+
+        if (progress.isCancelled()) {
+            done(job, ErrorCode.CANCELLED);
+            return;
+        }
+
+        Buffer out = new Buffer(job.count + job.count / 2);
+
+        try {
+            transcoder.transcodeChunk(ByteBuffer.wrap(job.bytes, 0, job.count), out, job.charset);
+        }
+        catch (InterruptedIOException ex) {
+            done(job, ErrorCode.CANCELLED);
+            return;
+        }
+        catch (IOException | RuntimeException ex) {
+            Logger.getLogger(Pipeline.class.getName()).log(Level.SEVERE, null, ex);
+            done(job, ErrorCode.OK);
+            return;
+        }
+
+        job.bytes = out.buffer();
+        job.count = out.size();
+        write.put(job);
+    }
+
+    private void write(Job job, StreamTranscoder transcoder) {
+        if (progress.isCancelled()) {
+            done(job, ErrorCode.CANCELLED);
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try (FileOutputStream out = new FileOutputStream(job.output)) {
+            // strips the byte-order-mark and trailing nulls like the other conversions do
+            transcoder.beginOutput(out, addBom);
+            transcoder.writeChunk(job.bytes, job.count);
+            transcoder.endOutput();
+        }
+        catch (IOException | RuntimeException ex) {
+            // don't leave a half-written file behind
+            job.output.delete();
+            Logger.getLogger(Pipeline.class.getName()).log(Level.SEVERE, null, ex);
+            done(job, ErrorCode.OK);
+            return;
+        }
+
+        if (job.record != null) job.record.charset = job.charset.name();
+
+        statistics.fileConverted(job.charset.name(), job.length);
+        if (job.utf8) statistics.fastPathFile(job.length, job.fastPathNanos + System.nanoTime() - start);
+
+        done(job, ErrorCode.OK);
+    }
+
+    /**
+     * A file leaves the pipeline, whether it was converted or not
+     * @param job
+     * @param errorCode
+     */
+    private void done(Job job, ErrorCode errorCode) {
+        job.bytes = null;
+
+        if (job.original != null) {
+            job.original.done(errorCode, job.cpuNanos + Deduplicator.cpuTime() - job.stageStart);
+        }
+
+        progress.fileDone(job.input, job.length);
+        converter.finishFile(job.entry, errorCode);
+    }
+
+    /**
+     * The threads of a stage and the queue of files waiting for them
+     */
+    private class Stage implements Runnable {
+
+        private final PipelineStage      stage;
+        private final int                threads;
+        private final BlockingQueue<Job> queue;
+        private final ExecutorService    executor;
+        private final AtomicInteger      running;
+
+        // told there are no more files once all threads of this stage are done
+        private Stage next;
+
+        Stage(PipelineStage stage, int[] threads, int queueSize) {
+            this.stage    = stage;
+            this.threads  = threads[stage.ordinal()];
+            this.queue    = new ArrayBlockingQueue<>(queueSize);
+            this.executor = Executors.newFixedThreadPool(this.threads);
+            this.running  = new AtomicInteger(this.threads);
+        }
+
+        void start(Stage next) {
+            this.next = next;
+
+            for (int i = 0; i < threads; i++) executor.execute(this);
+            executor.shutdown();
+        }
+
+        /**
+         * Add a file to the queue, waiting for room if it is full
+         * @param job
+         */
+        void put(Job job) {
+            // the thread handing the job over is done with it
+            if (job.original != null) job.cpuNanos += Deduplicator.cpuTime() - job.stageStart;
+
+            boolean interrupted = false;
+
+            while (true) {
+                try {
+                    queue.put(job);
+                    break;
+                }
+                catch (InterruptedException ex) {
+                    // the file must get through, or the stages after this one would never end
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) Thread.currentThread().interrupt();
+
+            if (job != END) statistics.queueDepth(stage.queueName(), queue.size());
+        }
+
+        /**
+         * Tell every thread of the stage there are no more files
+         */
+        void end() {
+            for (int i = 0; i < threads; i++) put(END);
+        }
+
+        @Override
+        public void run() {
+            // buffers, decoders and detector of this thread
+            StreamTranscoder transcoder = new StreamTranscoder(statistics, progress);
+
+            while (true) {
+                Job job;
+
+                try {
+                    job = queue.take();
+                }
+                catch (InterruptedException ex) {
+                    continue;
+                }
+
+                if (job == END) break;
+
+                if (job.original != null) job.stageStart = Deduplicator.cpuTime();
+
+                try {
+                    switch (stage) {
+                        case READ:
+                            read(job);
+                            break;
+                        case DETECT:
+                            detect(job, transcoder);
+                            break;
+                        case TRANSCODE:
+                            transcode(job, transcoder);
+                            break;
+                        case WRITE:
+                            write(job, transcoder);
+                            break;
+                    }
+                }
+                catch (RuntimeException ex) {
+                    Logger.getLogger(Pipeline.class.getName()).log(Level.SEVERE, null, ex);
+                    done(job, ErrorCode.OK);
+                }
+            }
+
+            if (running.decrementAndGet() == 0 && next != null) next.end();
+        }
+    }
+
+    /**
+     * A file on its way through the stages
+     */
+    private static class Job {
+
+        private final File                  input;
+        private final File                  output;
+        private final Manifest.Entry        entry;
+        private final Deduplicator.Original original;
+        private final long                  length;
+
+        // where the charset is recorded, see Converter.convertFile
+        private final Manifest.Entry record;
+
+        // contents of the file once read, converted contents once transcoded
+        private byte[] bytes;
+        private int    count;
+
+        private Charset charset;
+
+        // already ASCII or UTF-8, and the time it took to find out
+        private boolean utf8;
+        private long    fastPathNanos;
+
+        // processor time spent on the file by the stages it went through, when it may have duplicates
+        private long cpuNanos;
+        private long stageStart;
+
+        Job(File input, File output, Manifest.Entry entry, Deduplicator.Original original, long length) {
+            this.input    = input;
+            this.output   = output;
+            this.entry    = entry;
+            this.original = original;
+            this.length   = length;
+            this.record   = original != null ? original.entry : entry;
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
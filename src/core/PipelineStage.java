@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+/**
+ * Stages a file goes through in ExecutionMode.PIPELINE, in order. Each stage
+ * has its own threads (see Converter.setStageThreads) and a bounded queue of
+ * files waiting for it, whose depth is published in ConversionStatistics.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public enum PipelineStage {
+    /**
+     * reads small files into memory, large ones are left to the transcode stage
+     */
+    READ,
+
+    /**
+     * finds out the charset of a file, or that it is already ASCII or UTF-8
+     */
+    DETECT,
+
+    /**
+     * converts the file to UTF-8 in memory (large files are converted from disk to disk)
+     */
+    TRANSCODE,
+
+    /**
+     * writes the converted file out
+     */
+    WRITE;
+
+    String queueName() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.PrintStream;
+
+/**
+ * Prints events to the console, messages to one stream and warnings
+ * and errors to another one
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class PrintStreamSink implements EventSink {
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    public PrintStreamSink(PrintStream out) {
+        this(out, out);
+    }
+
+    public PrintStreamSink(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override
+    public void accept(ConversionEvent event) {
+        PrintStream stream = event.getType().equals(ConversionEvent.Type.MESSAGE) ? out : err;
+
+        // println on a PrintStream is synchronized, lines never get mixed up
+        stream.println(event);
+    }
+}
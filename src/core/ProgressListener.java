@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+/**
+ * Receives the progress of a conversion. Listeners are called by the conversion
+ * threads, one at a time and a few times per second at most while a conversion
+ * is running.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public interface ProgressListener {
+
+    void progressChanged(ConversionProgress progress);
+}
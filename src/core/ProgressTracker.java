@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps count of the files and bytes converted so far, tells the progress listener
+ * about it and stops the conversion when the cancellation token is cancelled.
+ * Bytes are counted as the transcoders get through them; whatever they did not
+ * count (e.g. skipped files) is added when the file is done, so that the count
+ * ends up matching the total. What has been counted of each file is kept by
+ * the transcoder converting it (see StreamTranscoder.fileStarted), or by the
+ * Pipeline job while it goes from one stage to another.
+ *
+ * Listeners are called one at a time, whichever thread gets to tell them.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class ProgressTracker {
+
+    // listeners hear about progress at most this often, except at the end
+    private static final long NOTIFY_INTERVAL = 100L * 1000 * 1000;
+
+    private volatile ProgressListener  listener;
+    private volatile CancellationToken token;
+
+    private volatile long filesTotal;
+    private volatile long bytesTotal;
+    private volatile long startNanos;
+    private volatile File currentFile;
+
+    private final AtomicLong filesDone    = new AtomicLong();
+    private final AtomicLong bytesDone    = new AtomicLong();
+    private final AtomicLong lastNotified = new AtomicLong();
+
+    void setListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    ProgressListener getListener() {
+        return listener;
+    }
+
+    void setToken(CancellationToken token) {
+        this.token = token;
+    }
+
+    CancellationToken getToken() {
+        return token;
+    }
+
+    boolean isCancelled() {
+        CancellationToken t = token;
+        return t != null && t.isCancelled();
+    }
+
+    /**
+     * @throws InterruptedIOException if the conversion was cancelled
+     */
+    void checkCancelled() throws InterruptedIOException {
+        if (isCancelled()) throw new InterruptedIOException("conversion cancelled");
+    }
+
+    /**
+     * Reset the counts at the beginning of a conversion
+     * @param files
+     * @param bytes
+     */
+    void start(long files, long bytes) {
+        filesTotal   = files;
+        bytesTotal   = bytes;
+        startNanos   = System.nanoTime();
+        currentFile  = null;
+        lastNotified.set(startNanos - NOTIFY_INTERVAL);
+        filesDone.set(0);
+        bytesDone.set(0);
+    }
+
+    void fileStarted(File file) {
+        currentFile = file;
+    }
+
+    /**
+     * Count bytes which were just converted, see StreamTranscoder.count
+     * @param bytes
+     * @throws InterruptedIOException if the conversion was cancelled
+     */
+    void advance(long bytes) throws InterruptedIOException {
+        bytesDone.addAndGet(bytes);
+
+        checkCancelled();
+        maybeNotify();
+    }
+
+    /**
+     * @param uncounted bytes of the file which were not counted as it was converted
+     */
+    void fileDone(long uncounted) {
+        bytesDone.addAndGet(uncounted);
+
+        filesDone.incrementAndGet();
+        maybeNotify();
+    }
+
+    /**
+     * Count a whole file at once, for files which are handed from one thread
+     * to another while they are converted (see Pipeline)
+     * @param file
+     * @param length
+     */
+    void fileDone(File file, long length) {
+        currentFile = file;
+        fileDone(length);
+    }
+
+    ConversionProgress snapshot() {
+        return new ConversionProgress(filesDone.get(), filesTotal, bytesDone.get(), bytesTotal,
+                System.nanoTime() - startNanos, currentFile);
+    }
+
+    private void maybeNotify() {
+        long now  = System.nanoTime();
+        long last = lastNotified.get();
+
+        // of the threads getting here at the same time, one tells the listener
+        if (now - last >= NOTIFY_INTERVAL && lastNotified.compareAndSet(last, now)) notifyListener();
+    }
+
+    synchronized void notifyListener() {
+        ProgressListener l = listener;
+        if (l != null) l.progressChanged(snapshot());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts text in a single-byte charset (windows-125x, ISO-8859-x, KOI8-R...)
+ * to UTF-8 through a table holding the UTF-8 sequence of each of the 256 bytes.
+ * Tables are built from the JDK's own decoders, so the output is the same.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class SingleByteTranscoder implements DirectTranscoder {
+
+    // tables by charset, or NOT_SINGLE_BYTE
+    private static final ConcurrentHashMap<Charset, int[]> TABLES = new ConcurrentHashMap<>();
+
+    private static final int[] NOT_SINGLE_BYTE = new int[0];
+
+    // for each byte, its UTF-8 sequence (first byte lowest) and the length of the
+    // sequence in the top byte; 0 for bytes the charset does not map to anything
+    private final int[] table;
+
+    private SingleByteTranscoder(int[] table) {
+        this.table = table;
+    }
+
+    /**
+     * @param charset
+     * @return a transcoder for the charset, null if it is not a single-byte charset
+     */
+    static SingleByteTranscoder forCharset(Charset charset) {
+        int[] table = TABLES.get(charset);
+
+        if (table == null) {
+            table = buildTable(charset);
+            TABLES.put(charset, table);
+        }
+
+        return table != NOT_SINGLE_BYTE ? new SingleByteTranscoder(table) : null;
+    }
+
+    private static int[] buildTable(Charset charset) {
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) return NOT_SINGLE_BYTE;
+
+        CharsetDecoder decoder = charset.newDecoder();
+        if (decoder.maxCharsPerByte() != 1.0f) return NOT_SINGLE_BYTE;
+
+        int[] table = new int[256];
+        CharBuffer chars = CharBuffer.allocate(2);
+
+        for (int b = 0; b < 256; b++) {
+            decoder.reset();
+            chars.clear();
+
+            CoderResult result = decoder.decode(ByteBuffer.wrap(new byte[] {(byte) b}), chars, true);
+            if (result.isError()) continue;
+
+            decoder.flush(chars);
+            chars.flip();
+
+            // every byte must stand for a character of its own
+            if (chars.remaining() != 1 || Character.isSurrogate(chars.get(0))) return NOT_SINGLE_BYTE;
+
+            table[b] = utf8(chars.get(0));
+        }
+
+        return table;
+    }
+
+    private static int utf8(char c) {
+        if (c < 0x80) {
+            return 1 << 24 | c;
+        }
+        if (c < 0x800) {
+            return 2 << 24
+                    | (0x80 | (c & 0x3f)) << 8
+                    | (0xc0 | (c >> 6));
+        }
+        return 3 << 24
+                | (0x80 | (c & 0x3f)) << 16
+                | (0x80 | ((c >> 6) & 0x3f)) << 8
+                | (0xe0 | (c >> 12));
+    }
+
+    @Override
+    public void reset() {
+        // no state
+    }
+
+    @Override
+    public CoderResult transcode(ByteBuffer in, ByteBuffer out, boolean endOfInput) {
+        int position = in.position();
+        int limit    = in.limit();
+
+        byte[] o      = out.array();
+        int    offset = out.arrayOffset();
+        int    op     = offset + out.position();
+        int    ol     = offset + out.limit();
+
+        try {
+            while (position < limit) {
+                // as long as there is room for the longest sequence after every byte,
+                // all three bytes are written and only the right number of them kept
+                int safe = position + Math.min(limit - position, (ol - op) / 3);
+
+                while (position < safe) {
+                    int sequence = table[in.get(position) & 0xff];
+                    if (sequence == 0) return CoderResult.unmappableForLength(1);
+
+                    o[op]     = (byte) sequence;
+                    o[op + 1] = (byte) (sequence >> 8);
+                    o[op + 2] = (byte) (sequence >> 16);
+                    op += sequence >>> 24;
+                    position++;
+                }
+
+                if (position == limit) break;
+
+                // near the end of the output, check the room left byte by byte
+                int sequence = table[in.get(position) & 0xff];
+                int length   = sequence >>> 24;
+
+                if (length == 0) return CoderResult.unmappableForLength(1);
+                if (ol - op < length) return CoderResult.OVERFLOW;
+
+                for (int k = 0; k < length; k++) o[op++] = (byte) (sequence >> (8 * k));
+                position++;
+            }
+
+            return CoderResult.UNDERFLOW;
+        }
+        finally {
+            in.position(position);
+            out.position(op - offset);
+        }
+    }
+}
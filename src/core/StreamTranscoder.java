@@ -0,0 +1,711 @@
+/*
+ *  Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import com.ibm.icu.text.CharsetDetector;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams text in any charset to UTF-8 through a fixed set of buffers which
+ * are reused from one file to the next, so that converting a file allocates
+ * next to nothing regardless of its size. Decoders and the encoding detector
+ * are reused as well.
+ *
+ * Instances are not thread-safe. When the conversion is cancelled, they stop
+ * between two buffers with an InterruptedIOException.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class StreamTranscoder {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // far below the 2 GB a single mapping can span
+    static final long MAPPING_WINDOW = 64L * 1024 * 1024;
+
+    private static final byte[] BOM = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf};
+    private static final byte[] NULLS = new byte[4096];
+
+    private final byte[]         input   = new byte[BUFFER_SIZE];
+    private final ByteBuffer     inputBuffer = ByteBuffer.wrap(input);
+    private final CharBuffer     chars   = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer     output  = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final Utf8Validator  validator = new Utf8Validator();
+
+    // one decoder per charset met so far, reset before every file
+    private final Map<Charset, CharsetDecoder> decoders = new HashMap<>();
+
+    // charsets which can be converted without going through chars, null if they can't
+    private final Map<Charset, DirectTranscoder> directs = new HashMap<>();
+
+    private CharsetDetector detector;
+    private byte[]          head;
+
+    private final ConversionStatistics statistics;
+    private final ProgressTracker      progress;
+
+    // state of the file currently being written, either decoder or direct is set
+    private CharsetDecoder   decoder;
+    private DirectTranscoder direct;
+    private OutputStream     out;
+    private boolean          raw;
+    private boolean          firstChunk;
+    private long             pendingNulls;
+
+    // length of the file the transcoder was lent for and bytes of it counted so far,
+    // whatever was not is counted when it is done with it
+    private long fileLength;
+    private long fileCounted;
+
+    StreamTranscoder(ConversionStatistics statistics, ProgressTracker progress) {
+        this.statistics = statistics;
+        this.progress   = progress;
+    }
+
+    /**
+     * The transcoder counts the progress through a file until fileDone
+     * @param file
+     * @param length
+     */
+    void fileStarted(File file, long length) {
+        fileLength  = length;
+        fileCounted = 0;
+        progress.fileStarted(file);
+    }
+
+    void fileDone() {
+        progress.fileDone(Math.max(0, fileLength - fileCounted));
+        fileLength  = 0;
+        fileCounted = 0;
+    }
+
+    /**
+     * Count bytes of the current file which were just converted
+     * @param bytes
+     * @throws InterruptedIOException if the conversion was cancelled
+     */
+    void count(long bytes) throws InterruptedIOException {
+        fileCounted += bytes;
+        progress.advance(bytes);
+    }
+
+    /**
+     * Read a whole file to find out whether it is plain ASCII or valid UTF-8,
+     * stopping as soon as it turns out not to be
+     * @param in
+     * @return US-ASCII, UTF-8 or null if the content is neither
+     * @throws IOException
+     */
+    Charset sniffUtf8(ReadableByteChannel in) throws IOException {
+        validator.reset();
+
+        inputBuffer.clear();
+        while (in.read(inputBuffer) >= 0) {
+            inputBuffer.flip();
+            if (!validator.update(inputBuffer)) return null;
+            inputBuffer.clear();
+            progress.checkCancelled();
+        }
+
+        return sniffResult();
+    }
+
+    /**
+     * Same as sniffUtf8, but the file is read through memory mappings instead
+     * of being copied into the input buffer
+     * @param in
+     * @return US-ASCII, UTF-8 or null if the content is neither
+     * @throws IOException
+     */
+    Charset sniffUtf8Mapped(FileChannel in) throws IOException {
+        validator.reset();
+
+        long size = in.size();
+        for (long position = 0; position < size; position += MAPPING_WINDOW) {
+            MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPING_WINDOW, size - position));
+
+            if (!validator.update(window)) return null;
+            progress.checkCancelled();
+        }
+
+        return sniffResult();
+    }
+
+    /**
+     * Same as sniffUtf8, for a file which was read into memory
+     * @param bytes
+     * @return US-ASCII, UTF-8 or null if the content is neither
+     */
+    Charset sniffUtf8(ByteBuffer bytes) {
+        validator.reset();
+
+        if (!validator.update(bytes)) return null;
+
+        return sniffResult();
+    }
+
+    private Charset sniffResult() {
+        if (validator.isAscii()) return StandardCharsets.US_ASCII;
+        if (validator.isValid()) return StandardCharsets.UTF_8;
+        return null;
+    }
+
+    /**
+     * @param in
+     * @return a hash of everything that can be read from the channel
+     * @throws IOException
+     * @see ContentHash
+     */
+    long hash(ReadableByteChannel in) throws IOException {
+        return ContentHash.hash(in, inputBuffer);
+    }
+
+    /**
+     * @return a detector which can be given new text for every file
+     */
+    CharsetDetector detector() {
+        if (detector == null) detector = new CharsetDetector();
+        return detector;
+    }
+
+    /**
+     * Read the beginning of a file, e.g. for the encoding detector
+     * @param in
+     * @param length
+     * @return an array holding (at most) the first length bytes of the file,
+     * which may be reused by the next call
+     * @throws IOException
+     */
+    byte[] readHead(FileChannel in, int length) throws IOException {
+        return head(readAt(in, 0, Math.min(length, input.length)), length);
+    }
+
+    /**
+     * Read the beginning of a stream which can't be read twice (e.g. standard
+     * input); the bytes read must be handed back to transcode along with the
+     * rest of the stream
+     * @param in
+     * @param length
+     * @return an array holding (at most) the first length bytes of the stream,
+     * which may be reused by the next call; shorter only if the stream ended
+     * @throws IOException
+     */
+    byte[] readHead(ReadableByteChannel in, int length) throws IOException {
+        inputBuffer.clear().limit(Math.min(length, input.length));
+
+        while (inputBuffer.hasRemaining()) {
+            if (in.read(inputBuffer) < 0) break;
+        }
+
+        return head(inputBuffer.position(), length);
+    }
+
+    private byte[] head(int numRead, int length) {
+        // the detector wants an array of the exact length, files at least as
+        // long as the sample (i.e. most of them) can all share the same one
+        if (numRead == length) {
+            if (head == null || head.length != length) head = new byte[length];
+            System.arraycopy(input, 0, head, 0, length);
+            return head;
+        }
+
+        return Arrays.copyOf(input, numRead);
+    }
+
+    /**
+     * Copy a file which is already in UTF-8 as it is, only stripping the
+     * byte-order-mark (it is written back if addBom is true) and trailing nulls.
+     * The bytes in between are never brought into the JVM: transferTo lets
+     * the operating system copy them from one file to the other.
+     * @param in
+     * @param out
+     * @param addBom
+     * @return the number of bytes of the input file which were accounted for,
+     * less than its size if it shrank while it was being copied
+     * @throws IOException
+     */
+    long copy(FileChannel in, FileChannel out, boolean addBom) throws IOException {
+        long size  = in.size();
+        long start = 0;
+        long end   = size;
+
+        // if file starts with the byte-order-mark, skip it (we'll add it back later)
+        if (readAt(in, 0, BOM.length) == BOM.length
+                && input[0] == BOM[0] && input[1] == BOM[1] && input[2] == BOM[2]) {
+            start = BOM.length;
+        }
+
+        // starting at the end of the file, work your way backwards until you find a non-null byte
+        while (end > start) {
+            int length = (int) Math.min(input.length, end - start);
+            int numRead = readAt(in, end - length, length);
+            if (numRead < length) return end - length + numRead;
+
+            int last = length - 1;
+            while (last >= 0 && input[last] == 0) last--;
+
+            if (last >= 0) {
+                end = end - length + last + 1;
+                break;
+            }
+
+            end -= length;
+        }
+
+        long startNanos = System.nanoTime();
+
+        try {
+            // write BOM
+            if (addBom) {
+                ByteBuffer bom = ByteBuffer.wrap(BOM);
+                while (bom.hasRemaining()) out.write(bom);
+                statistics.addBytesOut(BOM.length);
+            }
+
+            // a window at a time, so that a cancellation does not wait for the whole file
+            long position = start;
+            while (position < end) {
+                long transferred = in.transferTo(position, Math.min(MAPPING_WINDOW, end - position), out);
+
+                // only happens if the file got shorter in the meantime
+                if (transferred <= 0) return position;
+
+                position += transferred;
+                statistics.addBytesOut(transferred);
+                count(transferred);
+            }
+
+            return size;
+        }
+        finally {
+            statistics.addWriteNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Read bytes at a given position of a file into the input buffer
+     * @param in
+     * @param position
+     * @param length
+     * @return the number of bytes read, less than length only at the end of the file
+     * @throws IOException
+     */
+    private int readAt(FileChannel in, long position, int length) throws IOException {
+        long startNanos = System.nanoTime();
+
+        inputBuffer.clear().limit(length);
+
+        while (inputBuffer.hasRemaining()) {
+            if (in.read(inputBuffer, position + inputBuffer.position()) < 0) break;
+        }
+
+        statistics.addReadNanos(System.nanoTime() - startNanos);
+
+        return inputBuffer.position();
+    }
+
+    /**
+     * Stream the content of a channel to an output stream in UTF-8.
+     * A leading byte-order-mark is stripped (it is written back if addBom is true)
+     * and trailing null characters are dropped.
+     * @param in
+     * @param out
+     * @param sourceCharset
+     * @param addBom
+     * @return the number of bytes read from the channel
+     * @throws IOException
+     */
+    long transcode(ReadableByteChannel in, OutputStream out, Charset sourceCharset, boolean addBom) throws IOException {
+        return transcode(null, in, out, sourceCharset, addBom);
+    }
+
+    /**
+     * Same as transcode, for a channel whose first bytes were already read from it
+     * @param head the bytes already read (see readHead), null if there are none
+     * @param in
+     * @param out
+     * @param sourceCharset
+     * @param addBom
+     * @return the number of bytes converted, including those of head
+     * @throws IOException
+     */
+    long transcode(byte[] head, ReadableByteChannel in, OutputStream out, Charset sourceCharset, boolean addBom) throws IOException {
+        start(out, sourceCharset, addBom);
+
+        long bytesRead = 0;
+
+        if (head != null) {
+            inputBuffer.put(head);
+            bytesRead = head.length;
+        }
+
+        boolean endOfInput = false;
+
+        try {
+            while (!endOfInput) {
+                // fill the input buffer after whatever the decoder left over last time
+                long startNanos = System.nanoTime();
+                int numRead = in.read(inputBuffer);
+                statistics.addReadNanos(System.nanoTime() - startNanos);
+
+                if (numRead < 0) endOfInput = true;
+                else bytesRead += numRead;
+
+                inputBuffer.flip();
+                decode(inputBuffer, endOfInput);
+                inputBuffer.compact();
+            }
+
+            finish();
+        }
+        finally {
+            this.out = null;
+        }
+
+        return bytesRead;
+    }
+
+    /**
+     * Same as transcode, but the file is decoded straight from memory mappings
+     * of at most MAPPING_WINDOW bytes each, so that it never goes through the
+     * Java heap and there is no limit to its size
+     * @param in
+     * @param out
+     * @param sourceCharset
+     * @param addBom
+     * @return the number of bytes read from the file
+     * @throws IOException
+     */
+    long transcodeMapped(FileChannel in, OutputStream out, Charset sourceCharset, boolean addBom) throws IOException {
+        start(out, sourceCharset, addBom);
+
+        long size = in.size();
+        long position = 0;
+
+        try {
+            boolean endOfInput;
+            do {
+                long length = Math.min(MAPPING_WINDOW, size - position);
+                endOfInput = position + length == size;
+
+                long startNanos = System.nanoTime();
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                statistics.addReadNanos(System.nanoTime() - startNanos);
+
+                decode(window, endOfInput);
+
+                // the next window starts at the first byte the decoder left over,
+                // so a character is never split between two windows
+                position += window.position();
+            } while (!endOfInput);
+
+            finish();
+        }
+        finally {
+            this.out = null;
+        }
+
+        return position;
+    }
+
+    /**
+     * Convert part of a file which starts and ends at character boundaries to
+     * UTF-8, writing out everything as it is: the byte-order-mark and nulls are
+     * left to whoever puts the parts together (see writeChunk). Progress is not
+     * counted either, only cancellation is checked.
+     * @param in
+     * @param position
+     * @param length
+     * @param out
+     * @param sourceCharset
+     * @throws IOException
+     */
+    void transcodeChunk(FileChannel in, long position, long length, OutputStream out, Charset sourceCharset) throws IOException {
+        long startNanos = System.nanoTime();
+        MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+        statistics.addReadNanos(System.nanoTime() - startNanos);
+
+        transcodeChunk(window, out, sourceCharset);
+    }
+
+    /**
+     * Same as transcodeChunk above, for bytes which are already in memory
+     * @param bytes
+     * @param out
+     * @param sourceCharset
+     * @throws IOException
+     */
+    void transcodeChunk(ByteBuffer bytes, OutputStream out, Charset sourceCharset) throws IOException {
+        start(out, sourceCharset, false);
+        raw = true;
+
+        try {
+            decode(bytes, true);
+            finish();
+        }
+        finally {
+            this.out = null;
+            raw = false;
+        }
+    }
+
+    /**
+     * Start writing a file made of chunks of UTF-8, see writeChunk
+     * @param out
+     * @param addBom
+     * @throws IOException
+     */
+    void beginOutput(OutputStream out, boolean addBom) throws IOException {
+        start(out, addBom);
+    }
+
+    /**
+     * Write the next chunk of a file, stripping the byte-order-mark at the
+     * beginning of the file and the nulls at its end like transcode does
+     * @param bytes
+     * @param length
+     * @throws IOException
+     */
+    void writeChunk(byte[] bytes, int length) throws IOException {
+        ByteBuffer chunk = ByteBuffer.wrap(bytes);
+        chunk.position(length);
+        writeOutput(chunk);
+    }
+
+    /**
+     * Done writing a file made of chunks, whatever nulls are still held back are trailing ones
+     */
+    void endOutput() {
+        this.out = null;
+    }
+
+    private void start(OutputStream out, Charset sourceCharset, boolean addBom) throws IOException {
+        encoder.reset();
+        inputBuffer.clear();
+        chars.clear();
+        output.clear();
+
+        start(out, addBom);
+
+        if (!directs.containsKey(sourceCharset)) {
+            directs.put(sourceCharset, DirectTranscoder.forCharset(sourceCharset));
+        }
+
+        direct  = directs.get(sourceCharset);
+        decoder = null;
+
+        if (direct != null) {
+            direct.reset();
+            return;
+        }
+
+        decoder = decoders.get(sourceCharset);
+        if (decoder == null) {
+            decoder = sourceCharset.newDecoder();
+            decoders.put(sourceCharset, decoder);
+        }
+
+        decoder.reset();
+    }
+
+    /**
+     * Decode the remaining bytes of a buffer, encoding and writing out chars as they come
+     * @param bytes
+     * @param endOfInput
+     * @throws IOException
+     */
+    private void decode(ByteBuffer bytes, boolean endOfInput) throws IOException {
+        if (direct != null) {
+            transcodeDirect(bytes, endOfInput);
+            return;
+        }
+
+        CoderResult result;
+        do {
+            int position = bytes.position();
+
+            long startNanos = System.nanoTime();
+            result = decoder.decode(bytes, chars, endOfInput);
+            statistics.addDecodeNanos(System.nanoTime() - startNanos);
+            if (result.isError()) result.throwException();
+
+            encodeChars(false);
+            advance(bytes.position() - position);
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Convert the remaining bytes of a buffer straight to UTF-8 and write them out
+     * @param bytes
+     * @param endOfInput
+     * @throws IOException
+     */
+    private void transcodeDirect(ByteBuffer bytes, boolean endOfInput) throws IOException {
+        CoderResult result;
+        do {
+            int position = bytes.position();
+
+            long startNanos = System.nanoTime();
+            result = direct.transcode(bytes, output, endOfInput);
+            statistics.addDecodeNanos(System.nanoTime() - startNanos);
+            if (result.isError()) result.throwException();
+
+            writeOutput(output);
+            advance(bytes.position() - position);
+        } while (result.isOverflow());
+    }
+
+    private void finish() throws IOException {
+        // nothing is held back by direct transcoders once they have seen the end of input
+        if (direct != null) return;
+
+        // some decoders keep state that has to be flushed at the end of input
+        CoderResult result;
+        do {
+            result = decoder.flush(chars);
+            encodeChars(true);
+        } while (result.isOverflow());
+
+        do {
+            result = encoder.flush(output);
+            writeOutput(output);
+        } while (result.isOverflow());
+    }
+
+    private void start(OutputStream out, boolean addBom) throws IOException {
+        this.out     = out;
+        firstChunk   = true;
+        pendingNulls = 0;
+
+        // write BOM
+        if (addBom) {
+            out.write(BOM);
+            statistics.addBytesOut(BOM.length);
+        }
+    }
+
+    /**
+     * Encode all chars decoded so far to UTF-8 and write them out
+     * @param endOfInput
+     * @throws IOException
+     */
+    private void encodeChars(boolean endOfInput) throws IOException {
+        chars.flip();
+
+        CoderResult result;
+        do {
+            long startNanos = System.nanoTime();
+            result = encoder.encode(chars, output, endOfInput);
+            statistics.addEncodeNanos(System.nanoTime() - startNanos);
+            if (result.isError()) result.throwException();
+
+            writeOutput(output);
+        } while (result.isOverflow());
+
+        // keep a dangling high surrogate for next time
+        chars.compact();
+    }
+
+    /**
+     * Write UTF-8 bytes from a buffer in write mode, stripping the byte-order-mark
+     * and holding back any nulls at its end; the buffer is cleared afterwards
+     * @param bytes
+     * @throws IOException
+     */
+    private void writeOutput(ByteBuffer bytes) throws IOException {
+        bytes.flip();
+
+        if (raw) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            bytes.clear();
+            return;
+        }
+
+        int start = bytes.position();
+        int end   = bytes.limit();
+
+        // if first character is the byte-order-mark, strip it (we'll add it back later);
+        // the encoder never splits a character so the whole BOM is there if any
+        if (firstChunk && end > start) {
+            if (end - start >= BOM.length
+                    && bytes.get(start) == BOM[0]
+                    && bytes.get(start + 1) == BOM[1]
+                    && bytes.get(start + 2) == BOM[2]) {
+                start += BOM.length;
+            }
+            firstChunk = false;
+        }
+
+        // work your way backwards until you find a non-null byte
+        // (in UTF-8 a null byte can only be a null character)
+        int last = end - 1;
+        while (last >= start && bytes.get(last) == 0) last--;
+
+        if (last < start) {
+            // buffer is made up of nulls only, they might be trailing ones
+            pendingNulls += end - start;
+        }
+        else {
+            long startNanos = System.nanoTime();
+
+            // nulls held back so far turned out not to be trailing after all
+            writeNulls();
+
+            out.write(bytes.array(), bytes.arrayOffset() + start, last + 1 - start);
+            statistics.addBytesOut(last + 1 - start);
+            pendingNulls = end - (last + 1);
+
+            statistics.addWriteNanos(System.nanoTime() - startNanos);
+        }
+
+        bytes.clear();
+    }
+
+    private void advance(long bytes) throws IOException {
+        // chunks are counted when they are written out
+        if (raw) progress.checkCancelled();
+        else count(bytes);
+    }
+
+    private void writeNulls() throws IOException {
+        while (pendingNulls > 0) {
+            int n = (int) Math.min(pendingNulls, NULLS.length);
+            out.write(NULLS, 0, n);
+            statistics.addBytesOut(n);
+            pendingNulls -= n;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+/**
+ * An entry of a TAR archive as read by TarInputStream. The header is kept as it
+ * was read (along with any GNU or pax extension headers in front of it), so that
+ * TarOutputStream writes it back with everything but the size untouched.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class TarEntry {
+
+    private final byte[]  header;
+    private final byte[]  extensions;
+    private final String  name;
+    private final long    size;
+    private final char    type;
+    private final boolean paxSize;
+
+    TarEntry(byte[] header, byte[] extensions, String name, long size, char type, boolean paxSize) {
+        this.header     = header;
+        this.extensions = extensions;
+        this.name       = name;
+        this.size       = size;
+        this.type       = type;
+        this.paxSize    = paxSize;
+    }
+
+    /**
+     * @return the 512 bytes of the header, not to be modified
+     */
+    byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the extension headers and their data, in the form they take in the archive
+     */
+    byte[] getExtensions() {
+        return extensions;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the length of the data of the entry
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true for regular files, as opposed to directories, links, devices etc.
+     */
+    boolean isFile() {
+        return type == '0' || type == '\0' || type == '7';
+    }
+
+    /**
+     * @return false for links, devices, directories and fifos, whose size (if any) is
+     * meaningless
+     */
+    boolean hasData() {
+        return type < '1' || type > '6';
+    }
+
+    /**
+     * @return true if the size is given by a pax extension header, which
+     * TarOutputStream can't change
+     */
+    boolean hasPaxSize() {
+        return paxSize;
+    }
+}
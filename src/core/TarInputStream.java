@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the entries of a TAR archive one after the other, in the manner of
+ * ZipInputStream: getNextEntry moves on to the next entry, whose data can then
+ * be read from the stream itself. Understands ustar, GNU long names and pax
+ * extended headers, which is what tar writes nowadays.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class TarInputStream extends FilterInputStream {
+
+    static final int BLOCK_SIZE = 512;
+
+    // extension headers hold names and such, anything bigger is not a TAR archive
+    private static final int MAX_EXTENSION_SIZE = 1024 * 1024;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    // data of the current entry not read yet, and padding after it
+    private long remaining;
+    private long padding;
+
+    TarInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Skip whatever is left of the current entry and read the header of the next one
+     * @return the next entry, null at the end of the archive
+     * @throws IOException if the archive is corrupt
+     */
+    TarEntry getNextEntry() throws IOException {
+        skipFully(remaining + padding);
+        remaining = 0;
+        padding   = 0;
+
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        String  longName = null;
+        String  paxPath  = null;
+        long    paxSize  = -1;
+
+        while (true) {
+            // an archive missing its end-of-archive blocks is tolerated
+            if (!readBlock() || isZero(block)) return null;
+
+            if (parseOctal(block, 148, 8) != checksum(block)) throw new IOException("corrupt TAR header");
+
+            char type = (char) block[156];
+            long size = parseSize(block);
+
+            // extension headers are about the entry which follows them
+            if (type == 'L' || type == 'K' || type == 'x' || type == 'g') {
+                if (size > MAX_EXTENSION_SIZE) throw new IOException("corrupt TAR extension header");
+
+                byte[] data = new byte[(int) size];
+                readFully(data, data.length);
+
+                extensions.write(block);
+                extensions.write(data);
+                extensions.write(new byte[padding(size)]);
+                skipFully(padding(size));
+
+                if (type == 'L') {
+                    longName = cString(data, 0, data.length);
+                }
+                else if (type == 'x') {
+                    String path = paxRecord(data, "path");
+                    if (path != null) paxPath = path;
+
+                    String length = paxRecord(data, "size");
+                    if (length != null) paxSize = Long.parseLong(length);
+                }
+                continue;
+            }
+
+            if (paxSize >= 0) size = paxSize;
+
+            String name;
+            if (longName != null) name = longName;
+            else if (paxPath != null) name = paxPath;
+            else name = ustarName(block);
+
+            TarEntry entry = new TarEntry(block.clone(), extensions.toByteArray(), name, size, type, paxSize >= 0);
+
+            remaining = entry.hasData() ? size : 0;
+            padding   = padding(remaining);
+
+            return entry;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) return -1;
+
+        int b = in.read();
+        if (b < 0) throw new EOFException("truncated TAR archive");
+
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) return -1;
+
+        int numRead = in.read(b, off, (int) Math.min(len, remaining));
+        if (numRead < 0) throw new EOFException("truncated TAR archive");
+
+        remaining -= numRead;
+        return numRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.min(n, remaining);
+        skipFully(skipped);
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean readBlock() throws IOException {
+        int numRead = 0;
+
+        while (numRead < BLOCK_SIZE) {
+            int n = in.read(block, numRead, BLOCK_SIZE - numRead);
+            if (n < 0) break;
+            numRead += n;
+        }
+
+        if (numRead == 0) return false;
+        if (numRead < BLOCK_SIZE) throw new EOFException("truncated TAR archive");
+        return true;
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int numRead = 0;
+
+        while (numRead < len) {
+            int n = in.read(b, numRead, len - numRead);
+            if (n < 0) throw new EOFException("truncated TAR archive");
+            numRead += n;
+        }
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+
+            // skip may give up early, read says whether the stream ended
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException("truncated TAR archive");
+                skipped = 1;
+            }
+
+            n -= skipped;
+        }
+    }
+
+    static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the sum of the bytes of a header, counting its checksum field as spaces
+     */
+    static long checksum(byte[] header) {
+        long sum = 0;
+
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return the size field, either in octal or, past 8 GB, in GNU base-256
+     */
+    static long parseSize(byte[] header) throws IOException {
+        if ((header[124] & 0x80) == 0) return parseOctal(header, 124, 12);
+
+        long size = 0;
+        for (int i = 125; i < 136; i++) size = size << 8 | header[i] & 0xff;
+        return size;
+    }
+
+    static long parseOctal(byte[] header, int offset, int length) throws IOException {
+        long value = 0;
+        int  end   = offset + length;
+        int  i     = offset;
+
+        while (i < end && header[i] == ' ') i++;
+
+        for (; i < end && header[i] != 0 && header[i] != ' '; i++) {
+            if (header[i] < '0' || header[i] > '7') throw new IOException("corrupt TAR header");
+            value = value << 3 | header[i] - '0';
+        }
+
+        return value;
+    }
+
+    private static String ustarName(byte[] header) {
+        String name = cString(header, 0, 100);
+
+        // ustar splits long names in a prefix and a name
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't'
+                && header[260] == 'a' && header[261] == 'r' && header[345] != 0) {
+            name = cString(header, 345, 155) + "/" + name;
+        }
+
+        return name;
+    }
+
+    private static String cString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) end++;
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param data pax records, each of them "length keyword=value\n"
+     * @param keyword
+     * @return the value of the last record for keyword, null if there is none
+     */
+    private static String paxRecord(byte[] data, String keyword) throws IOException {
+        String value = null;
+        int offset = 0;
+
+        while (offset < data.length && data[offset] != 0) {
+            int space = offset;
+            while (space < data.length && data[space] != ' ') space++;
+
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+            }
+            catch (NumberFormatException ex) {
+                throw new IOException("corrupt TAR extension header");
+            }
+
+            if (length <= space - offset || offset + length > data.length) {
+                throw new IOException("corrupt TAR extension header");
+            }
+
+            String record = new String(data, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith(keyword + "=")) value = record.substring(keyword.length() + 1);
+
+            offset += length;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a TAR archive made of entries read by TarInputStream, in the manner of
+ * ZipOutputStream. Headers are written back as they were read except for the
+ * size, which has to be known before the data is written.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class TarOutputStream extends FilterOutputStream {
+
+    // tar pads archives to a multiple of 20 blocks
+    private static final int RECORD_SIZE = 20 * TarInputStream.BLOCK_SIZE;
+
+    // the largest size which fits in the octal size field
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private long remaining;
+    private long written;
+    private boolean finished;
+
+    TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Write the headers of an entry, after which exactly size bytes of data
+     * must be written before closeEntry
+     * @param entry
+     * @param size
+     * @throws IOException
+     */
+    void putNextEntry(TarEntry entry, long size) throws IOException {
+        if (entry.hasPaxSize() && size != entry.getSize()) {
+            throw new IOException("cannot change the size of " + entry.getName());
+        }
+
+        byte[] header = entry.getHeader().clone();
+        writeSize(header, size);
+        writeOctal(header, 148, 7, TarInputStream.checksum(header));
+
+        writeBlocks(entry.getExtensions(), 0, entry.getExtensions().length);
+        writeBlocks(header, 0, header.length);
+
+        remaining = entry.hasData() ? size : 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (remaining <= 0) throw new IOException("more data than the size of the entry");
+
+        out.write(b);
+        remaining--;
+        written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > remaining) throw new IOException("more data than the size of the entry");
+
+        out.write(b, off, len);
+        remaining -= len;
+        written   += len;
+    }
+
+    /**
+     * Pad the data of the current entry to a whole block
+     * @throws IOException if less data was written than the entry was given
+     */
+    void closeEntry() throws IOException {
+        if (remaining != 0) throw new IOException("less data than the size of the entry");
+
+        writeBlocks(new byte[TarInputStream.padding(written)], 0, TarInputStream.padding(written));
+    }
+
+    /**
+     * Write the end of the archive, without closing the underlying stream
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+
+        // two empty blocks, then up to the end of the record
+        long end = written + 2 * TarInputStream.BLOCK_SIZE;
+        end += (RECORD_SIZE - end % RECORD_SIZE) % RECORD_SIZE;
+
+        writeBlocks(new byte[(int) (end - written)], 0, (int) (end - written));
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+
+    private void writeBlocks(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private static void writeSize(byte[] header, long size) {
+        if (size <= MAX_OCTAL_SIZE) {
+            writeOctal(header, 124, 11, size);
+            return;
+        }
+
+        // GNU base-256: the high bit of the first byte marks it
+        header[124] = (byte) 0x80;
+        for (int i = 135; i > 124; i--) {
+            header[i] = (byte) size;
+            size >>>= 8;
+        }
+    }
+
+    /**
+     * Write a number as digits zero-padded to length, followed by a NUL
+     */
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        byte[] digits = String.format("%0" + length + "o", value).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(digits, 0, header, offset, length);
+        header[offset + length] = 0;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Walks an input directory tree and tells a visitor about every directory and
+ * file in it, together with the matching path in the output tree. Entries are
+ * read from the file system one at a time as the walk goes on and the walk is
+ * iterative, so neither huge directories nor deep trees are a problem.
+ * Symbolic links are either followed, with loops detected and reported as
+ * failures, or skipped altogether.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class TreeWalker {
+
+    interface Visitor {
+
+        /**
+         * @param input a subdirectory of the input directory
+         * @param output the matching directory in the output tree
+         * @return false to skip the directory and all it contains
+         */
+        boolean enterDirectory(File input, File output);
+
+        /**
+         * @param input a regular file
+         * @param output where it is to be converted to
+         * @return false to stop the walk
+         */
+        boolean file(File input, File output);
+
+        /**
+         * @param input a file or directory which was skipped
+         * @param reason why it was skipped
+         */
+        void skipped(File input, String reason);
+    }
+
+    private final boolean followLinks;
+
+    TreeWalker(boolean followLinks) {
+        this.followLinks = followLinks;
+    }
+
+    void walk(File inputDir, File outputDir, final Visitor visitor) throws IOException {
+        final Path inputRoot  = inputDir.toPath();
+        final Path outputRoot = outputDir.toPath();
+
+        Set<FileVisitOption> options = followLinks
+                ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+                : Collections.<FileVisitOption>emptySet();
+
+        Files.walkFileTree(inputRoot, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                // the root has already been dealt with by the caller
+                if (dir.equals(inputRoot)) return FileVisitResult.CONTINUE;
+
+                return visitor.enterDirectory(dir.toFile(), output(dir).toFile())
+                        ? FileVisitResult.CONTINUE
+                        : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // links are only seen here when they are not followed or are broken
+                if (attrs.isSymbolicLink()) {
+                    visitor.skipped(file.toFile(), followLinks
+                            ? "it is a broken symbolic link" : "it is a symbolic link");
+                    return FileVisitResult.CONTINUE;
+                }
+
+                // e.g. named pipes or devices, which could block the conversion forever
+                if (!attrs.isRegularFile()) {
+                    visitor.skipped(file.toFile(), "it is not a regular file");
+                    return FileVisitResult.CONTINUE;
+                }
+
+                return visitor.file(file.toFile(), output(file).toFile())
+                        ? FileVisitResult.CONTINUE
+                        : FileVisitResult.TERMINATE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                if (ex instanceof FileSystemLoopException) {
+                    visitor.skipped(file.toFile(), "symbolic links make it contain itself");
+                }
+                else {
+                    visitor.skipped(file.toFile(), "it could not be read (" + ex + ")");
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
+                // directory could not be read to the end
+                if (ex != null) visitor.skipped(dir.toFile(), "it could not be read (" + ex + ")");
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            private Path output(Path input) {
+                return outputRoot.resolve(inputRoot.relativize(input).toString());
+            }
+        });
+    }
+
+    /**
+     * @param dir
+     * @return true if the directory has no entries, found without listing all of them
+     * @throws IOException
+     */
+    static boolean isEmpty(File dir) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+            return !entries.iterator().hasNext();
+        }
+    }
+}
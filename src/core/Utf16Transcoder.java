@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CoderResult;
+
+/**
+ * Converts UTF-16 (little or big endian) to UTF-8 straight from the bytes.
+ * A surrogate pair split between two buffers is left in the input until the
+ * second half is there, the way a CharsetDecoder would. As with the JDK's
+ * UTF-16LE and UTF-16BE decoders, a leading byte-order-mark is converted
+ * like any other character.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class Utf16Transcoder implements DirectTranscoder {
+
+    private final boolean bigEndian;
+
+    private Utf16Transcoder(boolean bigEndian) {
+        this.bigEndian = bigEndian;
+    }
+
+    /**
+     * @param charset
+     * @return a transcoder for UTF-16BE or UTF-16LE, null for any other charset
+     */
+    static Utf16Transcoder forCharset(Charset charset) {
+        switch (charset.name()) {
+            case "UTF-16BE":
+                return new Utf16Transcoder(true);
+            case "UTF-16LE":
+                return new Utf16Transcoder(false);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void reset() {
+        // no state
+    }
+
+    @Override
+    public CoderResult transcode(ByteBuffer in, ByteBuffer out, boolean endOfInput) {
+        int position = in.position();
+        int limit    = in.limit();
+
+        byte[] o      = out.array();
+        int    offset = out.arrayOffset();
+        int    op     = offset + out.position();
+        int    ol     = offset + out.limit();
+
+        try {
+            while (limit - position >= 2) {
+                // as long as there is room for the longest sequence after every unit,
+                // runs of ASCII are copied without any other check
+                int safe = position + 2 * Math.min((limit - position) / 2, (ol - op) / 4);
+
+                while (position < safe) {
+                    char c = unit(in, position);
+                    if (c >= 0x80) break;
+
+                    o[op++] = (byte) c;
+                    position += 2;
+                }
+
+                if (limit - position < 2) break;
+
+                // room for the longest sequence
+                if (ol - op < 4) return CoderResult.OVERFLOW;
+
+                char c = unit(in, position);
+
+                if (c < 0x80) {
+                    o[op++] = (byte) c;
+                    position += 2;
+                }
+                else if (c < 0x800) {
+                    o[op++] = (byte) (0xc0 | (c >> 6));
+                    o[op++] = (byte) (0x80 | (c & 0x3f));
+                    position += 2;
+                }
+                else if (!Character.isSurrogate(c)) {
+                    o[op++] = (byte) (0xe0 | (c >> 12));
+                    o[op++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    o[op++] = (byte) (0x80 | (c & 0x3f));
+                    position += 2;
+                }
+                else {
+                    if (Character.isLowSurrogate(c)) return CoderResult.malformedForLength(2);
+
+                    // wait for the second half of the pair
+                    if (limit - position < 4) break;
+
+                    char d = unit(in, position + 2);
+                    if (!Character.isLowSurrogate(d)) return CoderResult.malformedForLength(2);
+
+                    int codePoint = Character.toCodePoint(c, d);
+                    o[op++] = (byte) (0xf0 | (codePoint >> 18));
+                    o[op++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    o[op++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    o[op++] = (byte) (0x80 | (codePoint & 0x3f));
+                    position += 4;
+                }
+            }
+
+            // an odd byte or half a surrogate pair at the end of the file
+            if (endOfInput && position < limit) return CoderResult.malformedForLength(limit - position);
+
+            return CoderResult.UNDERFLOW;
+        }
+        finally {
+            in.position(position);
+            out.position(op - offset);
+        }
+    }
+
+    private char unit(ByteBuffer in, int position) {
+        int first  = in.get(position) & 0xff;
+        int second = in.get(position + 1) & 0xff;
+
+        return (char) (bigEndian ? first << 8 | second : second << 8 | first);
+    }
+}
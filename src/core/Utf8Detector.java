@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Tells files which are plain ASCII or valid UTF-8, as long as they fit in the
+ * sample: a longer file could still turn out not to be, and the fast path (see
+ * Converter.setFastPath) already checks those from start to end
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class Utf8Detector implements EncodingDetector {
+
+    @Override
+    public String getName() {
+        return "utf8";
+    }
+
+    @Override
+    public Detection detect(DetectionSample sample) {
+        // an empty file could be anything
+        if (!sample.isComplete() || sample.getLength() == 0) return null;
+
+        Charset charset = sample.getTranscoder().sniffUtf8(ByteBuffer.wrap(sample.getHead()));
+        return charset != null ? new Detection(charset.name(), 100) : null;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells whether a stream of bytes is plain ASCII or well-formed UTF-8 without
+ * decoding it. Bytes are fed a buffer at a time; runs of ASCII are skipped eight
+ * bytes at a time by testing whole longs, and only non-ASCII bytes go through the
+ * UTF-8 state machine. Sequences split across buffers are handled.
+ *
+ * Overlong forms, surrogates and code points beyond U+10FFFF are rejected, just
+ * like the JDK's UTF-8 decoder does. Null bytes are only accepted at the end of
+ * the input, since embedded nulls usually mean the input is not text at all.
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+class Utf8Validator {
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LOW_BITS  = 0x0101010101010101L;
+
+    private boolean valid;
+    private boolean ascii;
+    private boolean sawNull;
+
+    // continuation bytes still expected and the range allowed for the next one
+    private int needed;
+    private int lower;
+    private int upper;
+
+    Utf8Validator() {
+        reset();
+    }
+
+    final void reset() {
+        valid   = true;
+        ascii   = true;
+        sawNull = false;
+        needed  = 0;
+        lower   = 0x80;
+        upper   = 0xbf;
+    }
+
+    /**
+     * Feed the remaining bytes of a buffer (heap, direct or mapped) to the
+     * validator, the buffer's position is left untouched
+     * @param buffer
+     * @return false as soon as the input is known not to be valid
+     */
+    boolean update(ByteBuffer buffer) {
+        if (!valid) return false;
+
+        int i   = buffer.position();
+        int end = buffer.limit();
+
+        while (i < end) {
+            // skip whole words of ASCII without nulls
+            if (needed == 0 && !sawNull) {
+                while (i + 8 <= end) {
+                    // byte order does not matter, every byte is tested the same way
+                    long word = buffer.getLong(i);
+                    if ((word & HIGH_BITS) != 0 || ((word - LOW_BITS) & ~word & HIGH_BITS) != 0) break;
+                    i += 8;
+                }
+                if (i == end) break;
+            }
+
+            int b = buffer.get(i++) & 0xff;
+
+            if (needed > 0) {
+                if (b < lower || b > upper) return invalid();
+                lower = 0x80;
+                upper = 0xbf;
+                needed--;
+                continue;
+            }
+
+            if (b == 0) {
+                sawNull = true;
+                continue;
+            }
+
+            // anything after a null is a sign of binary content
+            if (sawNull) return invalid();
+
+            if (b < 0x80) continue;
+
+            ascii = false;
+
+            if (b < 0xc2) return invalid();
+            else if (b < 0xe0) needed = 1;
+            else if (b < 0xf0) {
+                needed = 2;
+                if (b == 0xe0) lower = 0xa0;
+                else if (b == 0xed) upper = 0x9f;
+            }
+            else if (b < 0xf5) {
+                needed = 3;
+                if (b == 0xf0) lower = 0x90;
+                else if (b == 0xf4) upper = 0x8f;
+            }
+            else return invalid();
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if all bytes fed so far are valid and no sequence was left incomplete
+     */
+    boolean isValid() {
+        return valid && needed == 0;
+    }
+
+    /**
+     * @return true if all bytes fed so far are valid and below 0x80
+     */
+    boolean isAscii() {
+        return isValid() && ascii;
+    }
+
+    private boolean invalid() {
+        valid = false;
+        return false;
+    }
+}
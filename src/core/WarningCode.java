@@ -23,5 +23,6 @@ package core;
 public enum WarningCode {
     EMPTY_INPUT_DIR,
     ENCODING_NOT_DETECTED,
-    ENCODING_NOT_SUPPORTED
+    ENCODING_NOT_SUPPORTED,
+    ENCODING_NOT_CONVERTED
 }
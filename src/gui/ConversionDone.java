@@ -33,9 +33,25 @@ public class ConversionDone extends javax.swing.JDialog {
         
     /** Creates new form ConversionInProgress */
     public ConversionDone(java.awt.Frame parent, boolean modal, boolean ok, boolean warning, String details) {
+        this(parent, modal);
+        appendDetails(details);
+        showResult(ok, warning);
+    }
+
+    /**
+     * Creates the dialog without showing it, so that details can be appended
+     * while the conversion is running; showResult() shows it at the end
+     */
+    public ConversionDone(java.awt.Frame parent, boolean modal) {
         super(parent, modal);
         initComponents();
+    }
+
+    public void appendDetails(String details) {
+        detailsTextArea.append(details);
+    }
 
+    public void showResult(boolean ok, boolean warning) {
         String message = null;
         if (ok & !warning) {
             message = "Conversion process completed successfully";
@@ -50,8 +66,16 @@ public class ConversionDone extends javax.swing.JDialog {
             messageLabel.setIcon(new javax.swing.ImageIcon(getClass().getResource("/gui/res/ko.png")));
         }
         
+        showMessage(message);
+    }
+
+    public void showCancelled() {
+        messageLabel.setIcon(new javax.swing.ImageIcon(getClass().getResource("/gui/res/warning.png")));
+        showMessage("The conversion process was cancelled");
+    }
+
+    private void showMessage(String message) {
         messageLabel.setText(message);
-        detailsTextArea.setText(details);
                 
         // work out current screen resolution and center main window
         Dimension dim = Toolkit.getDefaultToolkit().getScreenSize();
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package gui;
+
+import core.CancellationToken;
+import core.ConversionProgress;
+import java.awt.Dimension;
+import java.awt.Toolkit;
+
+/**
+ * Shows how far a conversion running in the background has got and lets the user cancel it
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ConversionInProgress extends javax.swing.JDialog {
+
+    private final CancellationToken token;
+
+    /** Creates new form ConversionInProgress */
+    public ConversionInProgress(java.awt.Frame parent, CancellationToken token) {
+        super(parent, false);
+        this.token = token;
+        initComponents();
+
+        fileLabel.setText("Looking for files to convert...");
+        filesLabel.setText(" ");
+        speedLabel.setText(" ");
+        progressBar.setIndeterminate(true);
+
+        // work out current screen resolution and center the dialog
+        Dimension dim = Toolkit.getDefaultToolkit().getScreenSize();
+        int initialXPosition = (dim.width - this.getSize().width) / 2;
+        int initialYPosition = (dim.height - this.getSize().height) / 2;
+        this.setLocation(initialXPosition, initialYPosition);
+
+        this.setResizable(false);
+        this.pack();
+        this.setVisible(true);
+    }
+
+    /**
+     * Must be called on the event dispatch thread
+     * @param progress
+     */
+    public void setProgress(ConversionProgress progress) {
+        if (progress.getCurrentFile() != null) {
+            fileLabel.setText("Converting " + progress.getCurrentFile().getName());
+        }
+
+        if (progress.getBytesTotal() > 0) {
+            progressBar.setIndeterminate(false);
+            progressBar.setValue((int) (progressBar.getMaximum() * progress.getBytesDone() / progress.getBytesTotal()));
+        }
+
+        filesLabel.setText(progress.getFilesDone() + " of " + progress.getFilesTotal() + " files converted");
+
+        double seconds = progress.getElapsedNanos() / 1e9;
+        double megabytesPerSecond = seconds > 0 ? progress.getBytesDone() / (1024.0 * 1024.0) / seconds : 0;
+
+        String speed = String.format("%.1f MB/s", megabytesPerSecond);
+
+        long remaining = progress.getRemainingNanos();
+        if (remaining >= 0) speed += ", about " + formatTime(remaining / 1000000000L) + " left";
+
+        speedLabel.setText(speed);
+    }
+
+    private static String formatTime(long seconds) {
+        if (seconds < 60) return seconds + " s";
+        if (seconds < 3600) return String.format("%d:%02d", seconds / 60, seconds % 60);
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /** This method is called from within the constructor to
+     * initialize the form.
+     * WARNING: Do NOT modify this code. The content of this method is
+     * always regenerated by the Form Editor.
+     */
+    @SuppressWarnings("unchecked")
+    // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
+    private void initComponents() {
+
+        fileLabel = new javax.swing.JLabel();
+        progressBar = new javax.swing.JProgressBar();
+        filesLabel = new javax.swing.JLabel();
+        speedLabel = new javax.swing.JLabel();
+        cancelButton = new javax.swing.JButton();
+
+        setDefaultCloseOperation(javax.swing.WindowConstants.DO_NOTHING_ON_CLOSE);
+        setTitle("Converting...");
+
+        fileLabel.setText("fileLabel");
+
+        progressBar.setMaximum(1000);
+
+        filesLabel.setText("filesLabel");
+
+        speedLabel.setText("speedLabel");
+
+        cancelButton.setText("Cancel");
+        cancelButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cancelButtonActionPerformed(evt);
+            }
+        });
+
+        org.jdesktop.layout.GroupLayout layout = new org.jdesktop.layout.GroupLayout(getContentPane());
+        getContentPane().setLayout(layout);
+        layout.setHorizontalGroup(
+            layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
+            .add(layout.createSequentialGroup()
+                .addContainerGap()
+                .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
+                    .add(fileLabel, 0, 400, Short.MAX_VALUE)
+                    .add(progressBar, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 400, Short.MAX_VALUE)
+                    .add(filesLabel)
+                    .add(speedLabel)
+                    .add(org.jdesktop.layout.GroupLayout.TRAILING, cancelButton))
+                .addContainerGap())
+        );
+        layout.setVerticalGroup(
+            layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
+            .add(layout.createSequentialGroup()
+                .addContainerGap()
+                .add(fileLabel)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(progressBar, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(filesLabel)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(speedLabel)
+                .add(18, 18, 18)
+                .add(cancelButton)
+                .addContainerGap())
+        );
+
+        pack();
+    }// </editor-fold>//GEN-END:initComponents
+
+    private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
+        // the conversion stops after the current buffer, the dialog is closed when it is over
+        token.cancel();
+        cancelButton.setEnabled(false);
+        cancelButton.setText("Cancelling...");
+    }//GEN-LAST:event_cancelButtonActionPerformed
+
+    // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JButton cancelButton;
+    private javax.swing.JLabel fileLabel;
+    private javax.swing.JLabel filesLabel;
+    private javax.swing.JProgressBar progressBar;
+    private javax.swing.JLabel speedLabel;
+    // End of variables declaration//GEN-END:variables
+}
@@ -19,8 +19,13 @@ package gui;
 
 import com.formdev.flatlaf.FlatLightLaf;
 import core.About;
+import core.CancellationToken;
+import core.ConversionEvent;
+import core.ConversionProgress;
 import core.Converter;
 import core.ErrorCode;
+import core.EventSink;
+import core.ProgressListener;
 import java.awt.Desktop;
 import java.awt.Dimension;
 import java.awt.Toolkit;
@@ -30,10 +35,13 @@ import java.awt.datatransfer.UnsupportedFlavorException;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFileChooser;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.TransferHandler;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
@@ -141,6 +149,11 @@ public class MainWindow extends javax.swing.JFrame {
         inputFileLabel.setText(inputFileLabelStringFile);
         outputFileLabel.setText(outputFileLabelStringFile);
         convertButton.setText(convertButtonLabel1);
+
+        // the number of threads only matters when converting a folder
+        threadsSpinner.setValue(Math.min(Runtime.getRuntime().availableProcessors(), 64));
+        threadsLabel.setEnabled(false);
+        threadsSpinner.setEnabled(false);
         
         inputTextField.setTransferHandler(new FileTransferHandler());
         inputTextField.getDocument().addDocumentListener(new DocumentListener() {
@@ -275,57 +288,138 @@ public class MainWindow extends javax.swing.JFrame {
         File inFile = new File(inputTextField.getText());
         File outFile = new File(outputTextField.getText());
         
+        CancellationToken token = new CancellationToken();
+
         Converter converter = new Converter();
-        
-        ErrorCode errorCode = null;
-        
-        switch (conversionType) {
-            case FILE:
-                errorCode = converter.convertFile(inFile, outFile, addBomCheckBox.isSelected());
-                break;
-                
-            case FOLDER:
-                errorCode = converter.convertDir(inFile, outFile, addBomCheckBox.isSelected());
-                break;
+        // the spinner is disabled in single file mode, files then get the default
+        if (conversionType == ConversionType.FOLDER) converter.setThreads((Integer) threadsSpinner.getValue());
+        converter.setCancellationToken(token);
+
+        // the log goes straight to the results dialog
+        converter.setLogBufferSize(0);
+
+        new ConversionWorker(converter, inFile, outFile, addBomCheckBox.isSelected(),
+                new ConversionInProgress(this, token)).execute();
+    }
+
+    /**
+     * Runs a conversion off the event dispatch thread, so that the window keeps
+     * repainting and the progress dialog can show how it is going
+     */
+    private class ConversionWorker extends SwingWorker<ErrorCode, ConversionEvent>
+            implements EventSink, ProgressListener {
+
+        private final Converter            converter;
+        private final File                 inFile;
+        private final File                 outFile;
+        private final boolean              addBom;
+        private final ConversionType       type;
+        private final ConversionInProgress conversionInProgress;
+        private final ConversionDone       conversionDone;
+
+        ConversionWorker(Converter converter, File inFile, File outFile, boolean addBom,
+                ConversionInProgress conversionInProgress) {
+            this.converter            = converter;
+            this.inFile               = inFile;
+            this.outFile              = outFile;
+            this.addBom               = addBom;
+            this.type                 = conversionType;
+            this.conversionInProgress = conversionInProgress;
+            this.conversionDone       = new ConversionDone(MainWindow.this, true);
+
+            converter.addSink(this);
+            converter.setProgressListener(this);
         }
-        
-        boolean ok = errorCode.equals(ErrorCode.OK);
-        
-        boolean warning = converter.getWarning().size() > 0;
-        
-        String details = converter.getErrorLog() +
-                converter.getWarningLog() +
-                converter.getLog();
-        
-        ConversionDone conversionDone = new ConversionDone(this, true, ok, warning, details);
-        
-        // if conversion completed without errors
-        if (ok) {
-            // reset the TextFields
-            inputTextField.setText("");
-            outputTextField.setText("");
-            
 
-            // open a file manager
-            File targetDir;
-            if (outFile.isDirectory()) {
-                targetDir = outFile;
+        @Override
+        protected ErrorCode doInBackground() {
+            switch (type) {
+                case FILE:
+                    return converter.convertFile(inFile, outFile, addBom);
+
+                case FOLDER:
+                    return converter.convertDir(inFile, outFile, addBom);
             }
-            else {
-                targetDir = new File(outFile.getParent());
+
+            return null;
+        }
+
+        // called by the conversion threads
+        @Override
+        public void accept(ConversionEvent event) {
+            publish(event);
+        }
+
+        // called by the conversion threads, a few times per second at most
+        @Override
+        public void progressChanged(final ConversionProgress progress) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    conversionInProgress.setProgress(progress);
+                }
+            });
+        }
+
+        @Override
+        protected void process(List<ConversionEvent> events) {
+            StringBuilder details = new StringBuilder();
+
+            for (ConversionEvent event : events) {
+                details.append(event).append(System.getProperty("line.separator"));
             }
 
+            conversionDone.appendDetails(details.toString());
+        }
+
+        @Override
+        protected void done() {
+            ErrorCode errorCode = null;
+
             try {
-                Desktop.getDesktop().open(targetDir);
-            } catch (IOException ex) {
+                errorCode = get();
+            }
+            catch (InterruptedException | ExecutionException ex) {
                 Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
             }
-            
+
+            conversionInProgress.dispose();
+
+            boolean ok = ErrorCode.OK.equals(errorCode);
+
+            boolean warning = converter.getWarning().size() > 0;
+
+            if (ErrorCode.CANCELLED.equals(errorCode)) conversionDone.showCancelled();
+            else conversionDone.showResult(ok, warning);
+
+            // if conversion completed without errors
+            if (ok) {
+                // reset the TextFields
+                inputTextField.setText("");
+                outputTextField.setText("");
+
+
+                // open a file manager
+                File targetDir;
+                if (outFile.isDirectory()) {
+                    targetDir = outFile;
+                }
+                else {
+                    targetDir = new File(outFile.getParent());
+                }
+
+                try {
+                    Desktop.getDesktop().open(targetDir);
+                } catch (IOException ex) {
+                    Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
+                }
+
+            }
+
+            MainWindow.this.setEnabled(true);
+            convertButton.setText(convertButtonLabel1);
+            convertButton.setEnabled(true);
         }
-        
-        this.setEnabled(true);
-        convertButton.setText(convertButtonLabel1);
-        convertButton.setEnabled(true);
     }
     
     private void inputSelected(File inputFile) {
@@ -374,6 +468,8 @@ public class MainWindow extends javax.swing.JFrame {
         inputFileLabel.setText(inputFileLabelStringFile);
         outputFileLabel.setText(outputFileLabelStringFile);
         conversionType = ConversionType.FILE;
+        threadsLabel.setEnabled(false);
+        threadsSpinner.setEnabled(false);
         resetInputParams();
         resetOutputParams();        
     }
@@ -384,6 +480,8 @@ public class MainWindow extends javax.swing.JFrame {
         inputFileLabel.setText(inputFileLabelStringFolder);
         outputFileLabel.setText(outputFileLabelStringFolder);
         conversionType = ConversionType.FOLDER;
+        threadsLabel.setEnabled(true);
+        threadsSpinner.setEnabled(true);
         resetInputParams();
         resetOutputParams();        
     }
@@ -412,6 +510,8 @@ public class MainWindow extends javax.swing.JFrame {
         jSeparator1 = new javax.swing.JSeparator();
         jSeparator2 = new javax.swing.JSeparator();
         addBomCheckBox = new javax.swing.JCheckBox();
+        threadsLabel = new javax.swing.JLabel();
+        threadsSpinner = new javax.swing.JSpinner();
         mainMenuBar = new javax.swing.JMenuBar();
         helpMenu = new javax.swing.JMenu();
         onlineHelpMenuItem = new javax.swing.JMenuItem();
@@ -489,6 +589,10 @@ public class MainWindow extends javax.swing.JFrame {
             }
         });
 
+        threadsLabel.setText("Threads:");
+
+        threadsSpinner.setModel(new javax.swing.SpinnerNumberModel(1, 1, 64, 1));
+
         helpMenu.setText("Help");
 
         onlineHelpMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_F1, 0));
@@ -554,7 +658,11 @@ public class MainWindow extends javax.swing.JFrame {
                 .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
                     .add(layout.createSequentialGroup()
                         .addContainerGap()
-                        .add(addBomCheckBox))
+                        .add(addBomCheckBox)
+                        .add(18, 18, 18)
+                        .add(threadsLabel)
+                        .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                        .add(threadsSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 60, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                     .add(layout.createSequentialGroup()
                         .add(228, 228, 228)
                         .add(convertButton, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 101, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)))
@@ -586,7 +694,10 @@ public class MainWindow extends javax.swing.JFrame {
                     .add(outputTextField, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                     .add(outputSelectorButton))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
-                .add(addBomCheckBox)
+                .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(addBomCheckBox)
+                    .add(threadsLabel)
+                    .add(threadsSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(convertButton)
                 .addContainerGap(17, Short.MAX_VALUE))
@@ -723,5 +834,7 @@ public class MainWindow extends javax.swing.JFrame {
     private javax.swing.JLabel outputFileLabel;
     private javax.swing.JButton outputSelectorButton;
     private javax.swing.JTextField outputTextField;
+    private javax.swing.JLabel threadsLabel;
+    private javax.swing.JSpinner threadsSpinner;
     // End of variables declaration//GEN-END:variables
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Converting archives in which one entry turns out not to be in the encoding it
+ * was given
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ArchiveConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Charset WINDOWS_1252 = Charset.forName("windows-1252");
+
+    private static final String GOOD_TEXT;
+    private static final byte[] BAD_ENTRY;
+    private static final byte[] BINARY_ENTRY = new byte[4096];
+
+    static {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) text.append("Voilà une très belle fenêtre, où l'on voit la mer et les bateaux. ");
+        GOOD_TEXT = text.toString();
+
+        // plain ASCII well beyond the detection sample, then windows-1252: it only
+        // stops being UTF-8 once the transcoder is well into it
+        StringBuilder ascii = new StringBuilder();
+        while (ascii.length() < 3 * Converter.DETECTION_SAMPLE_SIZE) ascii.append("Nothing to see here yet. ");
+
+        ByteArrayOutputStream bad = new ByteArrayOutputStream();
+        bad.write(ascii.toString().getBytes(StandardCharsets.US_ASCII), 0, ascii.length());
+        byte[] latin = GOOD_TEXT.getBytes(WINDOWS_1252);
+        bad.write(latin, 0, latin.length);
+        BAD_ENTRY = bad.toByteArray();
+
+        for (int i = 0; i < BINARY_ENTRY.length; i++) BINARY_ENTRY[i] = (byte) i;
+    }
+
+    /**
+     * @param late whether to have an entry which fails beyond the detection sample
+     * @return
+     */
+    private Map<String, byte[]> entries(boolean late) {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("before.txt", GOOD_TEXT.getBytes(WINDOWS_1252));
+        entries.put("early.bad", GOOD_TEXT.getBytes(WINDOWS_1252));
+        if (late) entries.put("broken.bad", BAD_ENTRY);
+        entries.put("image.bin", BINARY_ENTRY);
+        entries.put("after.txt", GOOD_TEXT.getBytes(WINDOWS_1252));
+        return entries;
+    }
+
+    private Converter converter() {
+        Converter converter = new Converter();
+        converter.setLogBufferSize(0);
+        converter.getDetectorChain().getHints().addHint("*.bad", "UTF-8", 100);
+        return converter;
+    }
+
+    private void checkEntries(Map<String, byte[]> entries, Map<String, byte[]> converted) {
+        assertEquals(entries.keySet(), converted.keySet());
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            if (entry.getKey().endsWith(".txt")) {
+                assertEquals(GOOD_TEXT, new String(converted.get(entry.getKey()), StandardCharsets.UTF_8));
+            }
+            else {
+                assertArrayEquals(entry.getKey(), entry.getValue(), converted.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void zipEntryWhichCannotBeDecodedIsCopied() throws IOException {
+        File input  = folder.newFile("input.zip");
+        File output = new File(folder.getRoot(), "output.zip");
+
+        writeZip(input, entries(false));
+
+        Converter converter = converter();
+        assertEquals(ErrorCode.OK, converter.convertArchive(input, output, false));
+        assertTrue(converter.getWarning().contains(WarningCode.ENCODING_NOT_CONVERTED));
+
+        Map<String, byte[]> converted = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(output))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) converted.put(entry.getName(), readAll(in));
+        }
+        checkEntries(entries(false), converted);
+    }
+
+    @Test
+    public void zipEntryWhichFailsBeyondItsHeadIsRejected() throws IOException {
+        File input  = folder.newFile("input.zip");
+        File output = new File(folder.getRoot(), "output.zip");
+
+        writeZip(input, entries(true));
+
+        // the beginning of the entry is already in the output by then
+        assertEquals(ErrorCode.INVALID_INPUT_FILE, converter().convertArchive(input, output, false));
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void tarEntryWhichCannotBeDecodedIsCopied() throws IOException {
+        for (String name : new String[] {"input.tar", "input.tar.gz"}) {
+            File input  = folder.newFile(name);
+            File output = new File(folder.getRoot(), "output-" + name);
+
+            writeTar(input, entries(true));
+
+            Converter converter = converter();
+            assertEquals(ErrorCode.OK, converter.convertArchive(input, output, false));
+            assertTrue(converter.getWarning().contains(WarningCode.ENCODING_NOT_CONVERTED));
+
+            InputStream fileIn = new FileInputStream(output);
+            if (name.endsWith(".gz")) fileIn = new GZIPInputStream(fileIn);
+
+            Map<String, byte[]> converted = new LinkedHashMap<>();
+            try (TarInputStream in = new TarInputStream(fileIn)) {
+                TarEntry entry;
+                while ((entry = in.getNextEntry()) != null) converted.put(entry.getName(), readAll(in));
+            }
+            checkEntries(entries(true), converted);
+        }
+    }
+
+    @Test
+    public void progressIsCountedInEntryBytes() throws IOException {
+        long total = 0;
+        for (byte[] data : entries(true).values()) total += data.length;
+
+        File zip = folder.newFile("input.zip");
+        writeZip(zip, entries(true));
+        assertEquals(total, ArchiveConverter.contentLength(zip));
+
+        File tar = folder.newFile("input.tar");
+        File tgz = folder.newFile("input.tgz");
+        writeTar(tar, entries(true));
+        writeTar(tgz, entries(true));
+        assertEquals(tar.length(), ArchiveConverter.contentLength(tar));
+        assertEquals(tar.length(), ArchiveConverter.contentLength(tgz));
+    }
+
+    private static void writeZip(File file, Map<String, byte[]> entries) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static void writeTar(File file, Map<String, byte[]> entries) throws IOException {
+        OutputStream fileOut = new FileOutputStream(file);
+        if (ArchiveConverter.formatOf(file) == ArchiveConverter.Format.TAR_GZ) fileOut = new GZIPOutputStream(fileOut);
+
+        try (TarOutputStream out = new TarOutputStream(fileOut)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                byte[] header = new byte[TarInputStream.BLOCK_SIZE];
+                byte[] name   = entry.getKey().getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(name, 0, header, 0, name.length);
+                System.arraycopy("0000644".getBytes(StandardCharsets.US_ASCII), 0, header, 100, 7);
+                header[156] = '0';
+                System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+                byte[] data = entry.getValue();
+                out.putNextEntry(new TarEntry(header, new byte[0], entry.getKey(), data.length, '0', false), data.length);
+                out.write(data, 0, data.length);
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        int numRead;
+        while ((numRead = in.read(buffer)) > 0) out.write(buffer, 0, numRead);
+        return out.toByteArray();
+    }
+}
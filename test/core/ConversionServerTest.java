@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * ConversionServer and ConversionClient talking to each other
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ConversionServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String           home;
+    private ConversionServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // the token file goes to the home directory
+        home = System.getProperty("user.home");
+        System.setProperty("user.home", folder.newFolder("home").getPath());
+
+        Converter converter = new Converter();
+        converter.setLogBufferSize(0);
+
+        server = new ConversionServer(converter, 0, 2, false);
+
+        Thread serving = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                }
+                catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        serving.setDaemon(true);
+        serving.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertTrue(server.shutdown(10, TimeUnit.SECONDS));
+        assertFalse(ConversionServer.getTokenFile(server.getPort()).exists());
+
+        System.setProperty("user.home", home);
+    }
+
+    @Test
+    public void tokenFileIsPrivate() throws IOException {
+        File tokenFile = ConversionServer.getTokenFile(server.getPort());
+
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+    }
+
+    @Test
+    public void wrongTokenIsRefused() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+            out.println(ConversionServer.CONVERT + ConversionServer.SEPARATOR + "/etc/passwd" +
+                    ConversionServer.SEPARATOR + folder.getRoot().getAbsolutePath());
+
+            assertEquals(ConversionServer.DONE + ConversionServer.SEPARATOR + ConversionServer.UNAUTHORIZED, in.readLine());
+            assertNull(in.readLine());
+        }
+
+        assertFalse(new File(folder.getRoot(), "passwd").exists());
+    }
+
+    @Test
+    public void filesAreConverted() throws IOException {
+        File input  = folder.newFile("input.txt");
+        File output = new File(folder.getRoot(), "output.txt");
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) text.append("Voilà une très belle fenêtre, où l'on voit la mer et les bateaux. ");
+        Files.write(input.toPath(), text.toString().getBytes("windows-1252"));
+
+        try (ConversionClient client = new ConversionClient(server.getPort())) {
+            assertEquals(ErrorCode.OK.name(), client.convert(input, output, null));
+
+            // the output exists now
+            assertEquals(ErrorCode.OUTPUT_FILE_EXISTS.name(), client.convert(input, output, null));
+        }
+
+        assertEquals(text.toString(), new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * The detection cache, as Converter uses it
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class DetectionCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String convert(Converter converter, File input) throws IOException {
+        File output = new File(folder.getRoot(), "output.txt");
+        output.delete();
+
+        assertEquals(ErrorCode.OK, converter.convertFile(input, output, false));
+        return new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void hintsApplyToCachedFiles() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) text.append("Voilà une très belle fenêtre, où l'on voit la mer et les bateaux. ");
+
+        File input = folder.newFile("input.txt");
+        Files.write(input.toPath(), text.toString().getBytes("windows-1252"));
+
+        try (DetectionCache cache = DetectionCache.open(folder.newFile("cache"), 64)) {
+            Converter converter = new Converter();
+            converter.setLogBufferSize(0);
+            converter.setDetectionCache(cache);
+
+            assertTrue(convert(converter, input).startsWith("Voilà une très"));
+
+            // in ISO-8859-2, the byte of è is č
+            converter.getDetectorChain().getHints().addHint("*.txt", "ISO-8859-2", 100);
+            assertTrue(convert(converter, input).startsWith("Voilŕ une trčs"));
+
+            converter.getDetectorChain().getHints().clearHints();
+            assertTrue(convert(converter, input).startsWith("Voilà une très"));
+        }
+    }
+}
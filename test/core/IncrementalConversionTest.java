@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Incremental conversions (Converter.setIncremental) and their manifest
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class IncrementalConversionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File convert(File input, File output) throws IOException {
+        Converter converter = new Converter();
+        converter.setLogBufferSize(0);
+        converter.setIncremental(true);
+
+        assertEquals(ErrorCode.OK, converter.convertDir(input, output, false));
+        return new File(output, Manifest.FILE_NAME);
+    }
+
+    @Test
+    public void failedFileIsRetried() throws IOException {
+        File input  = folder.newFolder("input");
+        File output = folder.newFolder("output");
+
+        Files.write(new File(input, "text.txt").toPath(), "naïve café".getBytes(StandardCharsets.UTF_8));
+
+        // a folder in the way of the output makes the conversion fail
+        File blocker = new File(output, "text.txt");
+        assertTrue(new File(blocker, "file").mkdirs());
+
+        Manifest manifest = Manifest.load(convert(input, output));
+        assertNull(manifest.get("text.txt"));
+        assertTrue(blocker.isDirectory());
+
+        new File(blocker, "file").delete();
+        blocker.delete();
+
+        manifest = Manifest.load(convert(input, output));
+        assertEquals("UTF-8", manifest.get("text.txt").charset);
+        assertEquals("naïve café", new String(Files.readAllBytes(blocker.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void skippedFileIsRemembered() throws IOException {
+        File input  = folder.newFolder("input");
+        File output = folder.newFolder("output");
+
+        assertTrue(new File(input, "empty.txt").createNewFile());
+
+        Manifest.Entry entry = Manifest.load(convert(input, output)).get("empty.txt");
+        assertNotNull(entry);
+        assertNull(entry.charset);
+
+        // not tried again while it does not change
+        entry = Manifest.load(convert(input, output)).get("empty.txt");
+        assertNotNull(entry);
+        assertNull(entry.charset);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Files just over MIN_SIZE, made so that the chunk boundaries fall where a
+ * chunk can't end: cut in parallel, they must come out as they do in one piece
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ParallelTranscoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write prefix, then text over and over until the file is longer than MIN_SIZE
+     */
+    private File write(String prefix, String text, Charset charset) throws IOException {
+        File   file  = folder.newFile();
+        byte[] bytes = text.getBytes(charset);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            out.write(prefix.getBytes(charset));
+            for (long written = 0; written < ParallelTranscoder.MIN_SIZE; written += bytes.length) out.write(bytes);
+        }
+
+        return file;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) repeated.append(text);
+        return repeated.toString();
+    }
+
+    private void check(File file, Charset charset) throws IOException {
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        ByteArrayOutputStream parallel   = new ByteArrayOutputStream();
+
+        Converter converter = new Converter();
+
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            long bytesRead = converter.borrowTranscoder().transcode(in, sequential, charset, false);
+            assertEquals(file.length(), bytesRead);
+
+            in.position(0);
+            bytesRead = new ParallelTranscoder().transcode(converter, in, parallel,
+                    converter.borrowTranscoder(), charset, false, 4);
+            assertEquals(file.length(), bytesRead);
+        }
+
+        assertTrue(charset.name(), ParallelTranscoder.canSplit(charset));
+        assertArrayEquals(charset.name(), sequential.toByteArray(), parallel.toByteArray());
+    }
+
+    @Test
+    public void utf8SplitsBeforeLeadBytes() throws IOException {
+        // one byte, then three-byte characters: CHUNK_SIZE falls on a continuation byte
+        Charset charset = Charset.forName("UTF-8");
+        check(write("a", repeat("日本語", 1000), charset), charset);
+    }
+
+    @Test
+    public void utf16SplitsOutsideSurrogatePairs() throws IOException {
+        // one unit, then pairs: CHUNK_SIZE falls on a low surrogate
+        for (String name : new String[] {"UTF-16LE", "UTF-16BE"}) {
+            Charset charset = Charset.forName(name);
+            check(write("a", repeat("😀", 1000), charset), charset);
+        }
+    }
+
+    @Test
+    public void eucSplitsAfterAscii() throws IOException {
+        // runs of two-byte characters longer than the bytes splitPoint reads at a time
+        Charset charset = Charset.forName("EUC-JP");
+        check(write("a", repeat("日本語の文章", 1000) + "\n", charset), charset);
+    }
+
+    @Test
+    public void singleByteSplitsAnywhere() throws IOException {
+        Charset charset = Charset.forName("windows-1252");
+        check(write("", "Voilà une très belle fenêtre, où l'on voit la mer. ", charset), charset);
+    }
+
+    @Test
+    public void failedFileLeavesNothingBehind() throws IOException {
+        Charset charset = Charset.forName("UTF-8");
+        File    file    = write("", repeat("日本語", 1000), charset);
+
+        // a byte which is never valid UTF-8, in the last chunk
+        try (RandomAccessFile broken = new RandomAccessFile(file, "rw")) {
+            broken.seek(broken.length() - 1);
+            broken.write(0xff);
+        }
+
+        Converter          converter = new Converter();
+        ParallelTranscoder parallel  = new ParallelTranscoder();
+
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            parallel.transcode(converter, in, new ByteArrayOutputStream(),
+                    converter.borrowTranscoder(), charset, false, 4);
+            fail("the file is not valid UTF-8");
+        }
+        catch (MalformedInputException ex) {
+            // expected
+        }
+
+        // every slot went back: the next file goes through
+        file = write("a", repeat("日本語", 1000), charset);
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(file.length(), parallel.transcode(converter, in, out,
+                    converter.borrowTranscoder(), charset, false, 4));
+        }
+    }
+}
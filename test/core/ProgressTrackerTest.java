@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * The progress a listener is told about, however the files are spread over threads
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class ProgressTrackerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String TEXT = "Voilà une très belle fenêtre, où l'on voit la mer et les bateaux.\n";
+
+    /**
+     * Files converted, copied by the fast path, skipped or cut short by trailing NULs
+     */
+    private File tree() throws IOException {
+        File input = folder.newFolder("input");
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 3 * StreamTranscoder.BUFFER_SIZE) text.append(TEXT);
+
+        for (int i = 0; i < 40; i++) {
+            String content = i % 3 == 0 ? text.toString() : TEXT;
+            String charset = i % 2 == 0 ? "windows-1252" : "UTF-8";
+
+            byte[] bytes = content.getBytes(Charset.forName(charset));
+            if (i % 5 == 0) bytes = (content + "\u0000\u0000\u0000").getBytes(Charset.forName(charset));
+            if (i % 7 == 0) bytes = new byte[0];
+
+            Files.write(new File(input, "file" + i + ".txt").toPath(), bytes);
+        }
+
+        return input;
+    }
+
+    @Test
+    public void countsAddUpAndListenersAreCalledOneAtATime() throws IOException {
+        File input = tree();
+
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            final AtomicInteger                      calling     = new AtomicInteger();
+            final AtomicInteger                      overlapping = new AtomicInteger();
+            final AtomicReference<ConversionProgress> last       = new AtomicReference<>();
+
+            Converter converter = new Converter();
+            converter.setLogBufferSize(0);
+            converter.setExecutionMode(mode);
+            converter.setThreads(4);
+            converter.setProgressListener(new ProgressListener() {
+                @Override
+                public void progressChanged(ConversionProgress progress) {
+                    if (calling.incrementAndGet() > 1) overlapping.incrementAndGet();
+                    last.set(progress);
+                    Thread.yield();
+                    calling.decrementAndGet();
+                }
+            });
+
+            File output = folder.newFolder("output-" + mode);
+            assertEquals(ErrorCode.OK, converter.convertDir(input, output, false));
+
+            ConversionProgress progress = last.get();
+            assertEquals(mode.toString(), 0, overlapping.get());
+            assertEquals(mode.toString(), progress.getFilesTotal(), progress.getFilesDone());
+            assertEquals(mode.toString(), progress.getBytesTotal(), progress.getBytesDone());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * The output of the transcoder, byte for byte against what convertFile wrote
+ * when it decoded whole files into an ArrayList: a leading byte-order-mark
+ * dropped, trailing NULs dropped, a BOM added on request
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class StreamTranscoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] CHARSETS = {"windows-1252", "UTF-8", "UTF-16LE", "UTF-16BE", "Shift_JIS"};
+
+    private static final String LATIN    = "Voilà une très belle fenêtre, où l'on voit la mer et les bateaux. ";
+    private static final String JAPANESE = "いろはにほへと ちりぬるを、日本語の文章を変換する試験です。";
+
+    private static final int BUFFER_SIZE = StreamTranscoder.BUFFER_SIZE;
+
+    /**
+     * @param charset
+     * @param length
+     * @return at least length chars of text charset can encode
+     */
+    private static String text(String charset, int length) {
+        String sentence = charset.equals("Shift_JIS") ? JAPANESE : LATIN;
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) text.append(sentence);
+        return text.toString();
+    }
+
+    private static String nulls(int count) {
+        return new String(new char[count]);
+    }
+
+    /**
+     * What convertFile used to write, in the way it used to write it
+     */
+    private static byte[] baseline(byte[] input, Charset charset, boolean addBom) throws IOException {
+        CharBuffer internalCbuf = charset.newDecoder().decode(ByteBuffer.wrap(input));
+
+        ArrayList<Character> charArrayList = new ArrayList<>();
+        for (char c : internalCbuf.array()) charArrayList.add(c);
+
+        if (charArrayList.get(0).equals('\ufeff')) charArrayList.remove(0);
+
+        while (charArrayList.get(charArrayList.size() - 1) == 0) charArrayList.remove(charArrayList.size() - 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer out = new OutputStreamWriter(bytes, "UTF8")) {
+            if (addBom) out.write('\ufeff');
+            for (char c : charArrayList) out.write(c);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A channel which never fills a buffer, so that reads and buffers end in odd places
+     */
+    private static ReadableByteChannel channel(final byte[] bytes) {
+        return new ReadableByteChannel() {
+            private int position;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (position == bytes.length) return -1;
+
+                int n = Math.min(Math.min(dst.remaining(), 7777), bytes.length - position);
+                dst.put(bytes, position, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private void check(String content) throws IOException {
+        for (String charsetName : CHARSETS) {
+            Charset charset = Charset.forName(charsetName);
+            byte[]  input   = content.getBytes(charset);
+
+            // the text of the other charset, which this one can't encode
+            if (!new String(input, charset).equals(content)) continue;
+
+            for (boolean addBom : new boolean[] {false, true}) {
+                String  what     = charsetName + (addBom ? " with BOM" : "");
+                byte[]  expected = baseline(input, charset, addBom);
+
+                StreamTranscoder transcoder = new StreamTranscoder(new ConversionStatistics(), new ProgressTracker());
+
+                ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                transcoder.transcode(channel(input), streamed, charset, addBom);
+                assertArrayEquals(what + ", streamed", expected, streamed.toByteArray());
+
+                File file = folder.newFile();
+                Files.write(file.toPath(), input);
+
+                ByteArrayOutputStream mapped = new ByteArrayOutputStream();
+                try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+                    transcoder.transcodeMapped(in, mapped, charset, addBom);
+                }
+                assertArrayEquals(what + ", mapped", expected, mapped.toByteArray());
+
+                Converter converter = new Converter();
+                converter.setLogBufferSize(0);
+                converter.getDetectorChain().getHints().addHint("*", charsetName, 100);
+
+                File output = new File(folder.getRoot(), "output");
+                output.delete();
+                assertEquals(what, ErrorCode.OK, converter.convertFile(file, output, addBom));
+                assertArrayEquals(what + ", convertFile", expected, Files.readAllBytes(output.toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void plainText() throws IOException {
+        check(text("windows-1252", 500));
+        check(text("Shift_JIS", 500));
+    }
+
+    @Test
+    public void byteOrderMarkIsDropped() throws IOException {
+        check("\ufeff" + text("windows-1252", 500));
+        check("\ufeff" + text("Shift_JIS", 500));
+    }
+
+    @Test
+    public void trailingNullsAreDropped() throws IOException {
+        check(text("windows-1252", 500) + nulls(10));
+        check("\ufeff" + text("Shift_JIS", 500) + nulls(3));
+    }
+
+    @Test
+    public void nullsAcrossBuffers() throws IOException {
+        for (String charset : new String[] {"windows-1252", "Shift_JIS"}) {
+            // trailing, from a little before the end of the first buffer to well into the second
+            String text = text(charset, BUFFER_SIZE).substring(0, BUFFER_SIZE - 100);
+            check(text + nulls(BUFFER_SIZE));
+
+            // inside the text they are kept
+            check(text + nulls(BUFFER_SIZE) + "fin" + nulls(5));
+
+            // and NULs filling whole buffers before the end
+            check(text + nulls(3 * BUFFER_SIZE + 1));
+        }
+    }
+
+    @Test
+    public void textLongerThanBuffers() throws IOException {
+        check(text("windows-1252", 5 * BUFFER_SIZE + 17));
+        check("\ufeff" + text("Shift_JIS", 3 * BUFFER_SIZE + 5) + nulls(BUFFER_SIZE + 3));
+    }
+
+    @Test
+    public void emptyFileIsNotConverted() throws IOException {
+        File input  = folder.newFile("empty.txt");
+        File output = new File(folder.getRoot(), "output.txt");
+
+        // the ArrayList path gave up on empty files before writing anything
+        Converter converter = new Converter();
+        converter.setLogBufferSize(0);
+        assertEquals(ErrorCode.FILE_IS_EMPTY, converter.convertFile(input, output, true));
+        assertFalse(output.exists());
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 Eros Zanchetta <eros@sslmit.unibo.it>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * UTF-16 to UTF-8 without a CharsetDecoder: the output must be what the JDK
+ * decoders give, wherever reads, mappings and chunks cut the input
+ *
+ * @author Eros Zanchetta <eros@sslmit.unibo.it>
+ */
+public class Utf16TranscoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // ASCII, two and three byte characters, and surrogate pairs
+    private static final String TEXT = "Zwölf Boxkämpfer, Съешь же ещё, 日本語の文章, 𝄞 musique, 😀 émoji, 𠀋 kanji.\n";
+
+    private static final Charset[] CHARSETS = {StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE};
+
+    private static final char HIGH = '\ud83d';
+    private static final char LOW  = '\ude00';
+
+    /**
+     * A channel filling buffers with at most so many bytes at a time
+     */
+    private static ReadableByteChannel channel(final byte[] bytes, final int readSize) {
+        return new ReadableByteChannel() {
+            private int position;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (position == bytes.length) return -1;
+
+                int n = Math.min(Math.min(dst.remaining(), readSize), bytes.length - position);
+                dst.put(bytes, position, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static StreamTranscoder transcoder() {
+        return new StreamTranscoder(new ConversionStatistics(), new ProgressTracker());
+    }
+
+    private static byte[] transcode(byte[] input, Charset charset, int readSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transcoder().transcode(channel(input, readSize), out, charset, false);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return code units in charset, which need not make valid UTF-16
+     */
+    private static byte[] units(Charset charset, String units) {
+        ByteBuffer bytes = ByteBuffer.allocate(2 * units.length());
+        if (charset == StandardCharsets.UTF_16LE) bytes.order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int i = 0; i < units.length(); i++) bytes.putChar(units.charAt(i));
+        return bytes.array();
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) repeated.append(text);
+        return repeated.toString();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        String text = repeat(TEXT, 100);
+
+        for (Charset charset : CHARSETS) {
+            for (String bom : new String[] {"", "\ufeff"}) {
+                byte[] output = transcode((bom + text).getBytes(charset), charset, Integer.MAX_VALUE);
+
+                // as in every other charset, a leading byte-order-mark is not written out
+                assertArrayEquals(charset + (bom.isEmpty() ? "" : " with BOM"), text.getBytes(StandardCharsets.UTF_8), output);
+            }
+        }
+    }
+
+    @Test
+    public void surrogatePairAcrossReads() throws IOException {
+        // the high half is the last unit of the first buffer
+        String text = repeat("a", StreamTranscoder.BUFFER_SIZE / 2 - 1) + HIGH + LOW + repeat(TEXT, 3000);
+
+        for (Charset charset : CHARSETS) {
+            byte[] input = text.getBytes(charset);
+
+            assertArrayEquals(charset.name(), text.getBytes(StandardCharsets.UTF_8), transcode(input, charset, Integer.MAX_VALUE));
+
+            // and with reads ending anywhere, odd positions included
+            assertArrayEquals(charset.name(), text.getBytes(StandardCharsets.UTF_8), transcode(input, charset, 7777));
+        }
+    }
+
+    @Test
+    public void surrogatePairAcrossMappedWindows() throws IOException {
+        Charset charset = StandardCharsets.UTF_16LE;
+        File    file    = folder.newFile("window.txt");
+
+        // the high half is the last unit of the first window
+        long units = StreamTranscoder.MAPPING_WINDOW / 2 - 1;
+        byte[] block = repeat("a", 4096).getBytes(charset);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < units; written += 4096) {
+                out.write(block, 0, (int) (2 * Math.min(4096, units - written)));
+            }
+            out.write((HIGH + "" + LOW + TEXT).getBytes(charset));
+        }
+        assertEquals(StreamTranscoder.MAPPING_WINDOW + 2 + 2 * TEXT.length(), file.length());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            assertEquals(file.length(), transcoder().transcodeMapped(in, output, charset, false));
+        }
+
+        byte[] bytes = output.toByteArray();
+        byte[] tail  = (HIGH + "" + LOW + TEXT).getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(units + tail.length, bytes.length);
+        for (int i = 0; i < units; i++) {
+            if (bytes[i] != 'a') fail("byte " + i + " is " + bytes[i]);
+        }
+        assertArrayEquals(tail, Arrays.copyOfRange(bytes, (int) units, bytes.length));
+    }
+
+    private void assertMalformed(String what, byte[] input, Charset charset) throws IOException {
+        // the JDK decoder does not take it either
+        try {
+            charset.newDecoder().decode(ByteBuffer.wrap(input));
+            fail(what + ": the JDK decoder takes it");
+        }
+        catch (MalformedInputException ex) {
+            // as expected
+        }
+
+        for (int readSize : new int[] {Integer.MAX_VALUE, 3}) {
+            try {
+                transcode(input, charset, readSize);
+                fail(what + " in " + charset + " is converted");
+            }
+            catch (MalformedInputException ex) {
+                // as expected
+            }
+        }
+    }
+
+    @Test
+    public void unpairedSurrogates() throws IOException {
+        for (Charset charset : CHARSETS) {
+            assertMalformed("a high surrogate followed by ASCII", units(charset, "ab" + HIGH + "cd"), charset);
+            assertMalformed("two high surrogates", units(charset, "ab" + HIGH + HIGH + LOW), charset);
+            assertMalformed("a low surrogate on its own", units(charset, "ab" + LOW + "cd"), charset);
+            assertMalformed("a high surrogate at the end", units(charset, "abcd" + HIGH), charset);
+        }
+    }
+
+    @Test
+    public void oddTrailingByte() throws IOException {
+        for (Charset charset : CHARSETS) {
+            byte[] even = units(charset, "abcd");
+            assertMalformed("an odd byte at the end", Arrays.copyOf(even, even.length + 1), charset);
+        }
+    }
+
+    @Test
+    public void parallelChunksSplitAtLowSurrogates() throws IOException {
+        Charset charset = StandardCharsets.UTF_16LE;
+        File    file    = folder.newFile("parallel.txt");
+
+        // one unit, then pairs only: every CHUNK_SIZE boundary falls on a low surrogate
+        byte[] pairs = repeat("" + HIGH + LOW, 4096).getBytes(charset);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("a".getBytes(charset));
+            for (long written = 0; written < ParallelTranscoder.MIN_SIZE; written += pairs.length) out.write(pairs);
+        }
+
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        ByteArrayOutputStream parallel   = new ByteArrayOutputStream();
+
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            transcoder().transcode(in, sequential, charset, false);
+
+            in.position(0);
+            Converter converter = new Converter();
+            new ParallelTranscoder().transcode(converter, in, parallel,
+                    converter.borrowTranscoder(), charset, false, 4);
+        }
+
+        assertEquals(1 + ParallelTranscoder.MIN_SIZE, sequential.size());
+        assertArrayEquals(sequential.toByteArray(), parallel.toByteArray());
+    }
+}